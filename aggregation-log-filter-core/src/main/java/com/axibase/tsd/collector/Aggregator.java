@@ -17,28 +17,51 @@ package com.axibase.tsd.collector;
 
 
 import com.axibase.tsd.collector.config.SeriesSenderConfig;
+import com.axibase.tsd.collector.config.WriterConfig;
+import com.axibase.tsd.collector.writer.Batch;
 import com.axibase.tsd.collector.writer.HttpAtsdWriter;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Aggregator<E, K, L> {
+    private static final int URGENT_QUEUE_CAPACITY = 256;
+
+    // initialized before the worker, which reads it
+    private volatile Clock clock = CachedClock.INSTANCE;
     private final Worker worker = new Worker();
-    private final ConcurrentMap<K, SyncEventCounter<E, L>> total = new ConcurrentHashMap<>();
-    private final CountedQueue<EventWrapper<E>> singles = new CountedQueue<>();
-    private final AtomicLong totalCounter = new AtomicLong(0);
+    private final LoggerRegistry<K> loggers = new LoggerRegistry<>();
+    // counters indexed by logger id
+    private final IdIndexedArray<SyncEventCounter<E, L>> total = new IdIndexedArray<>();
+    // sampled messages, ring 0 is reserved for custom levels, ring i + 1 for the standard level with index i
+    private LevelRingBuffer<EventWrapper<E>> singles;
+    private final BlockingQueue<EventWrapper<E>> urgentSingles = new ArrayBlockingQueue<>(URGENT_QUEUE_CAPACITY);
+    private final LongAdder totalCounter = new LongAdder();
+    private final LongAdder droppedUrgentCounter = new LongAdder();
     private WritableByteChannel writer;
+    // commands of one flush cycle, written to the writer at the end of the cycle
+    private Batch batch;
+    private int maxBatchSize = WriterConfig.DEFAULT_MAX_BATCH_SIZE;
     private final MessageWriter<E, K, L> messageWriter;
     private final EventProcessor<E, K, L> eventProcessor;
     private ExecutorService senderExecutor;
+    // all triggers, used for custom levels and history eviction
     private SendMessageTrigger<E>[] triggers = null;
+    // trigger and stack trace lines of each standard level, indexed by EventProcessor.levelIndex
+    private final SendMessageTrigger<E>[] triggerByLevel;
+    private final int[] stackTraceLinesByLevel;
     private SeriesSenderConfig seriesSenderConfig = SeriesSenderConfig.DEFAULT;
 
     private final WorkerFinisher workerFinisher = new WorkerFinisher();
@@ -46,40 +69,51 @@ public class Aggregator<E, K, L> {
     public Aggregator(MessageWriter<E, K, L> messageWriter, EventProcessor<E, K, L> eventProcessor) {
         this.messageWriter = messageWriter;
         this.eventProcessor = eventProcessor;
+        @SuppressWarnings("unchecked")
+        SendMessageTrigger<E>[] byLevel = new SendMessageTrigger[eventProcessor.levelCount()];
+        triggerByLevel = byLevel;
+        stackTraceLinesByLevel = new int[byLevel.length];
+        singles = createSingles();
+    }
+
+    private LevelRingBuffer<EventWrapper<E>> createSingles() {
+        // the threshold limits all waiting messages, it is shared equally between the levels which have a trigger
+        final int[] capacities = new int[triggerByLevel.length + 1];
+        int levels = 0;
+        if (triggers != null) {
+            for (SendMessageTrigger<E> trigger : triggers) {
+                final int ring = eventProcessor.levelIndex(trigger.getIntLevel()) + 1;
+                if (capacities[ring] == 0) {
+                    capacities[ring] = 1;
+                    levels++;
+                }
+            }
+        }
+        if (levels > 0) {
+            final int capacity = Math.max(1, seriesSenderConfig.getMessageSkipThreshold() / levels);
+            for (int i = 0; i < capacities.length; i++) {
+                capacities[i] *= capacity;
+            }
+        }
+        return new LevelRingBuffer<>(capacities);
+    }
+
+    private SyncEventCounter<E, L> counter(int loggerId) {
+        SyncEventCounter<E, L> counter = total.get(loggerId);
+        if (counter == null) {
+            counter = total.putIfAbsent(loggerId, eventProcessor.createSyncCounter());
+        }
+        return counter;
     }
 
     public boolean register(E event) throws IOException {
         try {
-            K key = eventProcessor.extractKey(event);
-            SyncEventCounter<E, L> counter = total.get(key);
-            if (counter == null) {
-                counter = eventProcessor.createSyncCounter();
-                SyncEventCounter<E, L> old = total.putIfAbsent(key, counter);
-                counter = old == null ? counter : old;
-            }
-            counter.increment(event);
+            final int loggerId = loggers.idOf(eventProcessor.extractKey(event));
+            counter(loggerId).increment(event);
 
-            totalCounter.incrementAndGet();
+            totalCounter.increment();
 
-            // try to send immediately instance of Error
-            if (!messageWriter.sendErrorInstance(writer, event) && (triggers != null)) {
-                int lines = 0;
-                boolean fire = false;
-                for (SendMessageTrigger<E> trigger : triggers) {
-                    if (trigger.onEvent(event)) {
-                        fire = true;
-                        int stackTraceLines = trigger.getStackTraceLines();
-                        if (stackTraceLines < 0) {
-                            lines = Integer.MAX_VALUE;
-                        } else if (stackTraceLines > lines) {
-                            lines = stackTraceLines;
-                        }
-                    }
-                }
-                if (fire) {
-                    sendSingle(event, lines);
-                }
-            }
+            trigger(event, loggerId);
         } catch (Throwable t) {
             t.printStackTrace();
             throw new IOException(t);
@@ -87,11 +121,134 @@ public class Aggregator<E, K, L> {
         return true;
     }
 
-    private void sendSingle(final E event, final int lines) throws IOException {
-        singles.add(messageWriter.createWrapper(event, lines));
-        if (singles.getCount() > seriesSenderConfig.getMessageSkipThreshold()) {
-            singles.poll();
+    /**
+     * Same as {@link #register(Object)} for an event already counted by {@link #count(Object, int)}:
+     * the event is only passed to the send message triggers.
+     */
+    public boolean sample(E event) throws IOException {
+        try {
+            trigger(event, loggers.idOf(eventProcessor.extractKey(event)));
+        } catch (Throwable t) {
+            t.printStackTrace();
+            throw new IOException(t);
         }
+        return true;
+    }
+
+    private void trigger(E event, int loggerId) {
+        // hand instances of Error over to the sender immediately
+        if (messageWriter.isErrorInstance(event)) {
+            sendUrgent(event);
+        } else {
+            int levelIndex = eventProcessor.levelIndex(event);
+            if (levelIndex >= 0) {
+                SendMessageTrigger<E> trigger = triggerByLevel[levelIndex];
+                if (trigger != null && trigger.onEvent(event, loggerId)) {
+                    sendSingle(event, stackTraceLinesByLevel[levelIndex], levelIndex);
+                }
+            } else if (triggers != null) {
+                triggerCustomLevel(event, loggerId);
+            }
+        }
+    }
+
+    /**
+     * Counts an event of a standard level before the framework creates the event object.
+     * Events counted here must not be passed to {@link #register(Object)}, use {@link #sample(Object)} instead.
+     *
+     * @param levelIndex index of the level from {@link EventProcessor#levelIndex(int)}, must not be negative
+     * @return id of the logger for {@link #sample(int, int)}
+     */
+    public int count(K key, int levelIndex) {
+        final int loggerId = loggers.idOf(key);
+        counter(loggerId).incrementLevel(levelIndex);
+        totalCounter.increment();
+        return loggerId;
+    }
+
+    /**
+     * @return true if the event counted by {@link #count(Object, int)} should be created and passed to {@link #send(Object, int)}
+     */
+    public boolean sample(int loggerId, int levelIndex) {
+        SendMessageTrigger<E> trigger = triggerByLevel[levelIndex];
+        return trigger != null && trigger.onEvent(loggerId);
+    }
+
+    /**
+     * Queues the event counted by {@link #count(Object, int)} for sending. Instances of Error are sent
+     * without sampling, so the caller should pass them even if {@link #sample(int, int)} returned false.
+     */
+    public void send(E event, int levelIndex) {
+        if (messageWriter.isErrorInstance(event)) {
+            sendUrgent(event);
+        } else {
+            sendSingle(event, stackTraceLinesByLevel[levelIndex], levelIndex);
+        }
+    }
+
+    private void triggerCustomLevel(E event, int loggerId) {
+        int lines = 0;
+        boolean fire = false;
+        for (SendMessageTrigger<E> trigger : triggers) {
+            if (trigger.onEvent(event, loggerId)) {
+                fire = true;
+                lines = Math.max(lines, stackTraceLines(trigger));
+            }
+        }
+        if (fire) {
+            sendSingle(event, lines, -1);
+        }
+    }
+
+    private static int stackTraceLines(SendMessageTrigger<?> trigger) {
+        int stackTraceLines = trigger.getStackTraceLines();
+        return stackTraceLines < 0 ? Integer.MAX_VALUE : stackTraceLines;
+    }
+
+    private void sendUrgent(E event) {
+        EventWrapper<E> wrapper = messageWriter.createWrapper(event, Integer.MAX_VALUE);
+        // the timed offer fails at once in an interrupted thread, so a free slot is taken without it
+        boolean queued = urgentSingles.offer(wrapper);
+        if (!queued) {
+            try {
+                queued = urgentSingles.offer(wrapper, seriesSenderConfig.getUrgentEnqueueTimeoutMs(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!queued) {
+            droppedUrgentCounter.increment();
+        }
+    }
+
+    /**
+     * @return number of Error messages dropped because the urgent queue stayed full
+     */
+    public long getDroppedUrgentCount() {
+        return droppedUrgentCounter.sum();
+    }
+
+    private void sendSingle(final E event, final int lines, int levelIndex) {
+        final LevelRingBuffer<EventWrapper<E>> singles = this.singles;
+        final int ring = levelIndex + 1;
+        // the wrapper is created only if the ring of the level has a free slot
+        final long slot = singles.claim(ring);
+        if (slot >= 0) {
+            EventWrapper<E> wrapper = null;
+            try {
+                wrapper = messageWriter.createWrapper(event, lines);
+            } finally {
+                singles.publish(ring, slot, wrapper);
+            }
+        }
+    }
+
+    /**
+     * @param levelIndex index of a standard level from {@link EventProcessor#levelIndex(int)} or -1 for custom levels
+     * @return number of sampled messages of the level dropped because its buffer was full
+     */
+    public long getDroppedSingleCount(int levelIndex) {
+        return singles.getDroppedCount(levelIndex + 1);
     }
 
     public void start() {
@@ -121,7 +278,15 @@ public class Aggregator<E, K, L> {
 
     private void closeWriter() {
 
+        writeUrgentSingles();
         writeSingles();
+        if (batch != null) {
+            try {
+                batch.flush();
+            } catch (IOException e) {
+                AtsdUtil.logInfo("Could not write messages. " + e.getMessage());
+            }
+        }
 
         if (writer != null && writer.isOpen()) {
             AtsdUtil.logInfo("Close writer");
@@ -135,53 +300,121 @@ public class Aggregator<E, K, L> {
         }
     }
 
+    private void writeUrgentSingles() {
+        EventWrapper<E> wrapper;
+        while ((wrapper = urgentSingles.poll()) != null) {
+            messageWriter.writeSingle(batch, wrapper);
+        }
+    }
+
     private void writeSingles() {
-        if (!singles.isEmpty()) {
-            try {
-                messageWriter.writeSingles(writer, singles);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        EventWrapper<E> wrapper;
+        while ((wrapper = singles.poll()) != null) {
+            messageWriter.writeSingle(batch, wrapper);
+        }
+    }
+
+    private void flushWriter() throws IOException {
+        if (batch != null) {
+            batch.flush();
+        }
+        if (writer instanceof HttpAtsdWriter) {
+            writer.close();
+        } else if (writer instanceof Flushable) {
+            ((Flushable) writer).flush();
         }
     }
 
     public void setWriter(WritableByteChannel writer) {
         this.writer = writer;
+        batch = writer == null ? null : new Batch(writer, maxBatchSize);
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
+    @SuppressWarnings("unchecked")
     public void addSendMessageTrigger(SendMessageTrigger<E> messageTrigger) {
         messageTrigger.init();
+        messageTrigger.setClock(clock);
+        final int intLevel = messageTrigger.getIntLevel();
+        SendMessageTrigger<E>[] updated;
         if (triggers == null) {
-            triggers = new SendMessageTrigger[]{messageTrigger};
+            updated = new SendMessageTrigger[]{messageTrigger};
         } else {
-            Map<Integer, SendMessageTrigger> triggerMap = new HashMap<>();
-            for (SendMessageTrigger trigger : triggers) {
-                int intLevel = trigger.getIntLevel();
-                triggerMap.put(intLevel, trigger);
+            updated = triggers.clone();
+            int i = 0;
+            while (i < updated.length && updated[i].getIntLevel() != intLevel) {
+                i++;
+            }
+            if (i == updated.length) {
+                updated = Arrays.copyOf(updated, i + 1);
             }
-            triggerMap.put(messageTrigger.getIntLevel(), messageTrigger);
-            triggers = triggerMap.values().toArray(new SendMessageTrigger[0]);
+            updated[i] = messageTrigger;
         }
+        final int levelIndex = eventProcessor.levelIndex(intLevel);
+        if (levelIndex >= 0) {
+            stackTraceLinesByLevel[levelIndex] = stackTraceLines(messageTrigger);
+            triggerByLevel[levelIndex] = messageTrigger;
+        }
+        triggers = updated;
+        singles = createSingles();
     }
 
     public void setSeriesSenderConfig(SeriesSenderConfig seriesSenderConfig) {
         this.seriesSenderConfig = seriesSenderConfig;
+        singles = createSingles();
+    }
+
+    public void setWriterConfig(WriterConfig writerConfig) {
+        maxBatchSize = writerConfig.getMaxBatchSize();
+        setWriter(writer);
+    }
+
+    /**
+     * Sets the clock of the aggregator, its message writer and send message triggers. Call before {@link #start()}.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        messageWriter.setClock(clock);
+        SendMessageTrigger<E>[] triggers = this.triggers;
+        if (triggers != null) {
+            for (SendMessageTrigger<E> trigger : triggers) {
+                trigger.setClock(clock);
+            }
+        }
+        worker.last = clock.currentTimeMillis();
+    }
+
+    /**
+     * Performs one check of the sender loop in the calling thread, so that time-based behaviour
+     * can be driven by a {@link ManualClock} without starting the sender.
+     */
+    void checkAndWrite() throws IOException {
+        messageWriter.checkPropertiesSent(batch);
+        worker.checkThresholdsAndWrite();
     }
 
     private class Worker implements Runnable {
-        private final Map<K, EventCounter<L>> lastTotal = new HashMap<K, EventCounter<L>>();
+        // last sent counters indexed by logger id
+        private final List<EventCounter<L>> lastTotal = new ArrayList<>();
         private long lastTotalCounter = 0;
-        private long last = System.currentTimeMillis();
+        private long last = clock.currentTimeMillis();
 
         private volatile boolean stopped;
 
         @Override
         public void run() {
+            long nextCheck = clock.currentTimeMillis() + seriesSenderConfig.getCheckIntervalMs();
             while (!stopped) {
                 try {
-                    Thread.sleep(seriesSenderConfig.getCheckIntervalMs());
-                    messageWriter.checkPropertiesSent(writer);
+                    long wait = nextCheck - clock.currentTimeMillis();
+                    EventWrapper<E> urgent = wait > 0 ? urgentSingles.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (urgent != null) {
+                        messageWriter.writeSingle(batch, urgent);
+                        writeUrgentSingles();
+                        flushWriter();
+                        continue;
+                    }
+                    nextCheck = clock.currentTimeMillis() + seriesSenderConfig.getCheckIntervalMs();
+                    messageWriter.checkPropertiesSent(batch);
                     checkThresholdsAndWrite();
                 } catch (IOException e) {
                     AtsdUtil.logInfo("Could not write messages before finish. " + e.getMessage());
@@ -195,15 +428,16 @@ public class Aggregator<E, K, L> {
         }
 
         private void checkThresholdsAndWrite() throws IOException {
-            final long total = totalCounter.get();
+            final long total = totalCounter.sum();
             long cnt = total - lastTotalCounter;
-            long currentTime = System.currentTimeMillis();
+            long currentTime = clock.currentTimeMillis();
             long dt = currentTime - last;
             long intervalMs = seriesSenderConfig.getIntervalMs();
             if (dt > intervalMs) {
                 flush(last, currentTime);
                 cnt = 0;
                 lastTotalCounter = total;
+                evictIdleHistory();
             }
 
             int minIntervalThreshold = seriesSenderConfig.getMinIntervalThreshold();
@@ -212,10 +446,17 @@ public class Aggregator<E, K, L> {
                 lastTotalCounter = total;
             }
 
+            writeUrgentSingles();
             writeSingles();
+            flushWriter();
+        }
 
-            if (writer instanceof HttpAtsdWriter) {
-                writer.close();
+        private void evictIdleHistory() {
+            SendMessageTrigger<E>[] triggers = Aggregator.this.triggers;
+            if (triggers != null) {
+                for (SendMessageTrigger<E> trigger : triggers) {
+                    trigger.evictIdle();
+                }
             }
         }
 
@@ -224,20 +465,25 @@ public class Aggregator<E, K, L> {
 
             Map<K, EventCounter<L>> diff = new HashMap<K, EventCounter<L>>();
 
-            for (Map.Entry<K, SyncEventCounter<E, L>> keyAndCounter : total.entrySet()) {
-                K key = keyAndCounter.getKey();
-                SyncEventCounter<E, L> currentCount = keyAndCounter.getValue();
-                EventCounter<L> lastCount = lastTotal.get(key);
+            for (int id = 0, size = loggers.size(); id < size; id++) {
+                SyncEventCounter<E, L> currentCount = total.get(id);
+                if (currentCount == null) {
+                    continue;
+                }
+                while (lastTotal.size() <= id) {
+                    lastTotal.add(null);
+                }
+                EventCounter<L> lastCount = lastTotal.get(id);
                 if (lastCount == null) {
                     lastCount = eventProcessor.createCounter();
-                    lastTotal.put(key, lastCount);
+                    lastTotal.set(id, lastCount);
                 }
                 EventCounter<L> diffCount = currentCount.updateAndCreateDiff(lastCount);
                 if (diffCount != null) {
-                    diff.put(key, diffCount);
+                    diff.put(loggers.key(id), diffCount);
                 }
             }
-            messageWriter.writeStatMessages(writer, diff, (1 + currentTime - lastTime));
+            messageWriter.writeStatMessages(batch, diff, (1 + currentTime - lastTime), currentTime);
         }
 
         public void stop() {
@@ -245,7 +491,7 @@ public class Aggregator<E, K, L> {
         }
 
         public void finish() throws IOException {
-            flush(last, System.currentTimeMillis());
+            flush(last, clock.currentTimeMillis());
             closeWriter();
         }
     }
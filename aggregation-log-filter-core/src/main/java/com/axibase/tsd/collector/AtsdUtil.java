@@ -18,7 +18,6 @@ package com.axibase.tsd.collector;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.PumpStreamHandler;
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.ByteArrayOutputStream;
@@ -31,7 +30,6 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
-import java.util.regex.Pattern;
 
 public class AtsdUtil {
     public static final String EMPTY_MESSAGE = "\"\"";
@@ -48,9 +46,6 @@ public class AtsdUtil {
             return result;
         }
     };
-    private static final Pattern SPACE = Pattern.compile("[[\\s]]");
-    private static final Pattern QUOTES = Pattern.compile("[[\'|\"]]");
-    private static final Pattern CRLF = Pattern.compile("[\\r\\n]+");
     public static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int TRUNCATE_SIZE = 1000;
 
@@ -58,21 +53,32 @@ public class AtsdUtil {
         return sanitize(s);
     }
 
+    /**
+     * Trims the message and quotes it for CSV if it contains separators, quotes, line breaks or spaces.
+     * The same instance is returned if nothing is changed.
+     */
     public static String escapeCSV(String s) {
         if (s == null) {
-            s = EMPTY_MESSAGE;
-        } else {
-            s = s.trim();
-            if (s.isEmpty()) {
-                s = EMPTY_MESSAGE;
-            } else {
-                s = StringEscapeUtils.escapeCsv(s);
-                if (s.contains(" ") && !s.startsWith("\"")) {
-                    s = "\"" + s + "\"";
-                }
+            return EMPTY_MESSAGE;
+        }
+        int from = 0;
+        int to = s.length();
+        while (from < to && s.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && s.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        if (from == to) {
+            return EMPTY_MESSAGE;
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n' || c == ' ') {
+                return quote(s, from, to);
             }
         }
-        return s;
+        return substring(s, from, to);
     }
 
     // discard tags with the same names with different case, discard tags with empty values
@@ -90,26 +96,108 @@ public class AtsdUtil {
     }
 
     public static String sanitizeName(String s) {
-        s = StringEscapeUtils.escapeCsv(SPACE.matcher(s.trim()).replaceAll("_"));
-        if (s.contains("=") && !s.startsWith("\"")) {
-            s = "\"" + s + "\"";
+        int from = 0;
+        int to = s.length();
+        while (from < to && s.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && s.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        boolean quoted = false;
+        boolean changed = false;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '"' || c == '=') {
+                quoted = true;
+            } else if (isWhitespace(c)) {
+                changed = true;
+            }
+        }
+        if (!quoted && !changed) {
+            return substring(s, from, to);
         }
-        return s;
+        StringBuilder sb = new StringBuilder(to - from + 8);
+        if (quoted) {
+            sb.append('"');
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (isWhitespace(c)) {
+                sb.append('_');
+            } else {
+                if (c == '"') {
+                    sb.append('"');
+                }
+                sb.append(c);
+            }
+        }
+        if (quoted) {
+            sb.append('"');
+        }
+        return sb.toString();
     }
 
+    /**
+     * Truncates the value, replaces line breaks with the \n literal and quotes the value
+     * if it contains separators, quotes, spaces, tabs or the equal sign.
+     * The same instance is returned if nothing is changed.
+     */
     public static String sanitizeValue(String s) {
         if (s == null) {
             return EMPTY_MESSAGE;
         }
-        if (s.length() > TRUNCATE_SIZE) {
-            s = s.substring(0, TRUNCATE_SIZE);
+        int from = 0;
+        int to = Math.min(s.length(), TRUNCATE_SIZE);
+        // line breaks are replaced with the "\n" literal before trimming, so they are never trimmed
+        while (from < to && isTrimmedInValue(s.charAt(from))) {
+            from++;
+        }
+        while (to > from && isTrimmedInValue(s.charAt(to - 1))) {
+            to--;
+        }
+        if (from == to) {
+            return EMPTY_MESSAGE;
+        }
+        boolean quoted = false;
+        boolean changed = false;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '"' || c == ' ' || c == '=' || c == '\t') {
+                quoted = true;
+            } else if (c == '\r' || c == '\n') {
+                changed = true;
+            }
+        }
+        if (!quoted && !changed) {
+            return substring(s, from, to);
+        }
+        StringBuilder sb = new StringBuilder(to - from + 8);
+        if (quoted) {
+            sb.append('"');
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '\r' || c == '\n') {
+                sb.append("\\n");
+                while (i + 1 < to && (s.charAt(i + 1) == '\r' || s.charAt(i + 1) == '\n')) {
+                    i++;
+                }
+            } else {
+                if (c == '"') {
+                    sb.append('"');
+                }
+                sb.append(c);
+            }
         }
-        s = CRLF.matcher(s).replaceAll("\\\\n");
-        s = escapeCSV(s);
-        if (!s.startsWith("\"") && StringUtils.containsAny(s, ESCAPED_CHARS)) {
-            s = "\"" + s + "\"";
+        if (quoted) {
+            sb.append('"');
         }
-        return s;
+        return sb.toString();
+    }
+
+    private static boolean isTrimmedInValue(char c) {
+        return c <= ' ' && c != '\r' && c != '\n';
     }
 
     public static String sanitizeValue(int i) {
@@ -120,10 +208,54 @@ public class AtsdUtil {
         return sanitizeValue(Long.toString(l));
     }
 
+    /**
+     * Replaces whitespace with underscores and removes quotes and the pipe character.
+     * The same instance is returned if nothing is changed.
+     */
     public static String sanitize(String s) {
-        s = SPACE.matcher(s).replaceAll("_");
-        s = QUOTES.matcher(s).replaceAll("");
-        return s;
+        int i = 0;
+        final int length = s.length();
+        while (i < length && !isWhitespace(s.charAt(i)) && !isRemovedInEntity(s.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(length).append(s, 0, i);
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (isWhitespace(c)) {
+                sb.append('_');
+            } else if (!isRemovedInEntity(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isRemovedInEntity(char c) {
+        return c == '\'' || c == '"' || c == '|';
+    }
+
+    // characters matched by the \s regular expression class
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static String quote(String s, int from, int to) {
+        StringBuilder sb = new StringBuilder(to - from + 8).append('"');
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String substring(String s, int from, int to) {
+        return from == 0 && to == s.length() ? s : s.substring(from, to);
     }
 
     public static String resolveHostname() {
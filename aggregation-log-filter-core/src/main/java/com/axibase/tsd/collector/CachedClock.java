@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.axibase.tsd.collector;
+
+/**
+ * Millisecond clock refreshed by a single daemon thread, so readers do not call
+ * {@link System#currentTimeMillis()} on every event. The time lags behind the system clock by up to {@link #TICK_MS}.
+ */
+public final class CachedClock implements Clock {
+    public static final long TICK_MS = 10;
+    public static final CachedClock INSTANCE = new CachedClock();
+
+    private volatile long now = System.currentTimeMillis();
+
+    private CachedClock() {
+        Thread ticker = AtsdUtil.DAEMON_THREAD_FACTORY.newThread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    now = System.currentTimeMillis();
+                    try {
+                        Thread.sleep(TICK_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        ticker.setName("aggregation-log-filter-clock");
+        ticker.start();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+}
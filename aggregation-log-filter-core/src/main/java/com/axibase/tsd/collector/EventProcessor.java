@@ -21,4 +21,19 @@ public interface EventProcessor<E, K, L> {
     EventCounter<L> createCounter();
 
     K extractKey(E event);
+
+    /**
+     * @return number of standard levels, indexes returned by the levelIndex methods are below this value
+     */
+    int levelCount();
+
+    /**
+     * @return index of the event level among standard levels or -1 for a custom level
+     */
+    int levelIndex(E event);
+
+    /**
+     * @return index of the standard level with the given integer value or -1 if there is no such level
+     */
+    int levelIndex(int intLevel);
 }
@@ -15,19 +15,17 @@
 
 package com.axibase.tsd.collector;
 
-import java.util.Map;
-
 public class EventWrapper<E> {
     private final E event;
     private final int lines;
     private final String message;
-    private final Map context;
+    private final String[] mdcValues;
 
-    public EventWrapper(E event, int lines, String message, Map context) {
+    public EventWrapper(E event, int lines, String message, String[] mdcValues) {
         this.event = event;
         this.lines = lines;
         this.message = message;
-        this.context = context;
+        this.mdcValues = mdcValues;
     }
 
     public E getEvent() {
@@ -42,7 +40,10 @@ public class EventWrapper<E> {
         return message;
     }
 
-    public Map getContext() {
-        return context;
+    /**
+     * @return values of the configured MDC tags in the order the tags were added, or null if no tags are configured
+     */
+    public String[] getMdcValues() {
+        return mdcValues;
     }
 }
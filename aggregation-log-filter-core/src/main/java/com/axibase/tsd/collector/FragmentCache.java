@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of encoded command fragments, the least recently used fragment is evicted first.
+ * Not thread-safe, callers synchronize on the encoder that fills the cache.
+ */
+class FragmentCache<K> {
+    private final LinkedHashMap<K, byte[]> fragments;
+
+    FragmentCache(final int maxSize) {
+        fragments = new LinkedHashMap<K, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, byte[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    byte[] get(K key) {
+        return fragments.get(key);
+    }
+
+    void put(K key, byte[] fragment) {
+        fragments.put(key, fragment);
+    }
+
+    int size() {
+        return fragments.size();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Growable array of values indexed by {@link LoggerRegistry} ids. Reads are lock-free,
+ * values are added under a lock so that growing the array never loses an update.
+ */
+final class IdIndexedArray<T> {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile AtomicReferenceArray<T> values = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    T get(int id) {
+        final AtomicReferenceArray<T> current = values;
+        return id < current.length() ? current.get(id) : null;
+    }
+
+    /**
+     * @return the value already stored under the id or the given value if there was none
+     */
+    synchronized T putIfAbsent(int id, T value) {
+        AtomicReferenceArray<T> current = values;
+        if (id >= current.length()) {
+            AtomicReferenceArray<T> extended = new AtomicReferenceArray<>(Integer.highestOneBit(id) << 1);
+            for (int i = 0; i < current.length(); i++) {
+                extended.set(i, current.get(i));
+            }
+            values = extended;
+            current = extended;
+        }
+        final T old = current.get(id);
+        if (old != null) {
+            return old;
+        }
+        current.set(id, value);
+        return value;
+    }
+}
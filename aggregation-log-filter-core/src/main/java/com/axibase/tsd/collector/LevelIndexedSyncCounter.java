@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-logger counter record with one striped cell for each standard level.
+ * Levels without a dedicated cell (custom levels) are counted in a lazily created map.
+ */
+public abstract class LevelIndexedSyncCounter<E, L> implements SyncEventCounter<E, L> {
+    private final L[] levels;
+    private final LongAdder[] cells;
+    private volatile ConcurrentMap<L, LongAdder> otherLevels;
+
+    protected LevelIndexedSyncCounter(L[] levels) {
+        this.levels = levels;
+        cells = new LongAdder[levels.length];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return index of the event level in the levels array or -1 if the level has no dedicated cell
+     */
+    protected abstract int levelIndex(E event);
+
+    protected abstract L level(E event);
+
+    @Override
+    public void increment(E event) {
+        int index = levelIndex(event);
+        if (index >= 0) {
+            cells[index].increment();
+        } else {
+            incrementOther(level(event));
+        }
+    }
+
+    @Override
+    public void incrementLevel(int levelIndex) {
+        cells[levelIndex].increment();
+    }
+
+    private void incrementOther(L level) {
+        ConcurrentMap<L, LongAdder> map = otherLevels;
+        if (map == null) {
+            synchronized (this) {
+                map = otherLevels;
+                if (map == null) {
+                    map = new ConcurrentHashMap<>();
+                    otherLevels = map;
+                }
+            }
+        }
+        LongAdder count = map.get(level);
+        if (count == null) {
+            count = new LongAdder();
+            LongAdder old = map.putIfAbsent(level, count);
+            count = old == null ? count : old;
+        }
+        count.increment();
+    }
+
+    @Override
+    public EventCounter<L> updateAndCreateDiff(EventCounter<L> lastCount) {
+        EventCounter<L> result = null;
+        for (int i = 0; i < cells.length; i++) {
+            long cnt = cells[i].sum();
+            if (cnt > 0) {
+                result = updateDiff(result, lastCount, levels[i], cnt);
+            }
+        }
+        ConcurrentMap<L, LongAdder> map = otherLevels;
+        if (map != null) {
+            for (Map.Entry<L, LongAdder> entry : map.entrySet()) {
+                result = updateDiff(result, lastCount, entry.getKey(), entry.getValue().sum());
+            }
+        }
+        return result;
+    }
+
+    private static <L> EventCounter<L> updateDiff(EventCounter<L> result, EventCounter<L> lastCount, L key, long cnt) {
+        long diff = lastCount.updateAndGetDiff(key, cnt);
+        if (diff > 0) {
+            if (result == null) {
+                result = new SimpleCounter<>();
+            }
+            result.updateAndGetDiff(key, diff);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded multi-producer single-consumer buffer with a preallocated ring for each level.
+ * A full ring rejects new values of its level only, so a burst of low level values never pushes out values
+ * of other levels. Rejected values are counted per level. Values are polled from the highest level first.
+ * <p>
+ * Offering never allocates or blocks. A producer which has to build its value can {@link #claim(int)} a slot first,
+ * so nothing is built for a full ring. Polling is synchronized to tolerate a second consumer on shutdown.
+ */
+public class LevelRingBuffer<T> {
+    private final Ring[] rings;
+    private final LongAdder[] dropped;
+
+    public LevelRingBuffer(int levels, int capacityPerLevel) {
+        this(capacities(levels, capacityPerLevel));
+    }
+
+    /**
+     * @param capacities capacity of the ring of each level, a level with capacity 0 drops all its values
+     */
+    public LevelRingBuffer(int[] capacities) {
+        if (capacities.length < 1) {
+            throw new IllegalArgumentException("Levels must be more than 0");
+        }
+        rings = new Ring[capacities.length];
+        dropped = new LongAdder[capacities.length];
+        for (int i = 0; i < capacities.length; i++) {
+            if (capacities[i] < 0) {
+                throw new IllegalArgumentException("Capacity must not be negative, currently " + capacities[i]);
+            }
+            rings[i] = new Ring(capacities[i]);
+            dropped[i] = new LongAdder();
+        }
+    }
+
+    private static int[] capacities(int levels, int capacityPerLevel) {
+        if (levels < 1 || capacityPerLevel < 1) {
+            throw new IllegalArgumentException("Levels and capacity must be more than 0, currently "
+                    + levels + " and " + capacityPerLevel);
+        }
+        final int[] capacities = new int[levels];
+        Arrays.fill(capacities, capacityPerLevel);
+        return capacities;
+    }
+
+    /**
+     * @return false if the ring of the level is full and the value was dropped
+     */
+    public boolean offer(int level, T value) {
+        final long position = claim(level);
+        if (position < 0) {
+            return false;
+        }
+        publish(level, position, value);
+        return true;
+    }
+
+    /**
+     * Reserves a slot in the ring of the level. The slot must be passed to {@link #publish(int, long, Object)}
+     * right after, the consumer does not see later values of the level until then.
+     *
+     * @return reserved slot or -1 if the ring is full and the value is dropped
+     */
+    public long claim(int level) {
+        final long position = rings[level].claim();
+        if (position < 0) {
+            dropped[level].increment();
+        }
+        return position;
+    }
+
+    /**
+     * @param value value of the reserved slot, null releases the slot without a value
+     */
+    public void publish(int level, long position, T value) {
+        rings[level].publish(position, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized T poll() {
+        for (int i = rings.length - 1; i >= 0; i--) {
+            Object value = rings[i].poll();
+            if (value != null) {
+                return (T) value;
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        for (Ring ring : rings) {
+            if (!ring.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int levels() {
+        return rings.length;
+    }
+
+    public long getDroppedCount(int level) {
+        return dropped[level].sum();
+    }
+
+    /**
+     * Slot i is free for the producer claiming position p when sequence[i] == p,
+     * and holds the value for the consumer at position p when sequence[i] == p + 1.
+     */
+    private static final class Ring {
+        private final int capacity;
+        private final AtomicReferenceArray<Object> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            slots = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        long claim() {
+            if (capacity == 0) {
+                return -1;
+            }
+            while (true) {
+                final long position = tail.get();
+                final int index = (int) (position % capacity);
+                final long available = sequences.get(index) - position;
+                if (available == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        return position;
+                    }
+                } else if (available < 0) {
+                    return -1;
+                }
+            }
+        }
+
+        void publish(long position, Object value) {
+            final int index = (int) (position % capacity);
+            slots.set(index, value);
+            sequences.set(index, position + 1);
+        }
+
+        Object poll() {
+            if (capacity == 0) {
+                return null;
+            }
+            while (true) {
+                final long position = head;
+                final int index = (int) (position % capacity);
+                if (sequences.get(index) != position + 1) {
+                    return null;
+                }
+                final Object value = slots.get(index);
+                slots.set(index, null);
+                sequences.set(index, position + capacity);
+                head = position + 1;
+                if (value != null) {
+                    return value;
+                }
+                // a released slot without a value
+            }
+        }
+
+        boolean isEmpty() {
+            return tail.get() == head;
+        }
+    }
+}
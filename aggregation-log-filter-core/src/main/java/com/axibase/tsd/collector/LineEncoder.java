@@ -0,0 +1,343 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable UTF-8 encoder of network API commands.
+ * Values are sanitized and escaped directly into a growable buffer, the output is byte-identical to
+ * {@link AtsdUtil#sanitizeValue(String)}, {@link AtsdUtil#sanitizeName(String)} and
+ * {@link AtsdUtil#escapeCSV(String)} encoded as UTF-8.
+ * Not thread-safe.
+ */
+public class LineEncoder {
+    public static final int DEFAULT_CAPACITY = 4 * 1024;
+    private static final byte[] EMPTY_MESSAGE = AtsdUtil.EMPTY_MESSAGE.getBytes(AtsdUtil.UTF_8);
+    private static final byte QUOTE = '"';
+    private static final int TRUNCATE_SIZE = 1000;
+    private static final int DOUBLE_SCALE_DIGITS = 3;
+    private static final long DOUBLE_SCALE = 1000;
+    private static final double MAX_SCALED_DOUBLE = 1e15;
+
+    private final boolean direct;
+    private final byte[] digits = new byte[20];
+    private ByteBuffer buffer;
+
+    public LineEncoder() {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    public LineEncoder(int initialCapacity, boolean direct) {
+        this.direct = direct;
+        this.buffer = allocate(Math.max(initialCapacity, 64));
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void ensureRemaining(int length) {
+        if (buffer.remaining() < length) {
+            int capacity = Math.max(buffer.capacity() << 1, buffer.position() + length);
+            ByteBuffer extended = allocate(capacity);
+            buffer.flip();
+            extended.put(buffer);
+            buffer = extended;
+        }
+    }
+
+    public LineEncoder clear() {
+        buffer.clear();
+        return this;
+    }
+
+    public int position() {
+        return buffer.position();
+    }
+
+    /**
+     * Flips the underlying buffer for reading. The returned buffer is valid until the next {@link #clear()}.
+     */
+    public ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return copy of the bytes encoded since the last {@link #clear()}
+     */
+    public byte[] toByteArray() {
+        ByteBuffer encoded = buffer.duplicate();
+        encoded.flip();
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    public LineEncoder put(byte b) {
+        ensureRemaining(1);
+        buffer.put(b);
+        return this;
+    }
+
+    public LineEncoder put(byte[] bytes) {
+        ensureRemaining(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    public LineEncoder put(ByteBuffer src) {
+        ensureRemaining(src.remaining());
+        buffer.put(src);
+        return this;
+    }
+
+    public LineEncoder putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return putUtf8(Long.toString(value));
+        }
+        int i = digits.length;
+        boolean negative = value < 0;
+        long v = negative ? -value : value;
+        do {
+            digits[--i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        if (negative) {
+            digits[--i] = '-';
+        }
+        ensureRemaining(digits.length - i);
+        buffer.put(digits, i, digits.length - i);
+        return this;
+    }
+
+    /**
+     * Writes the value rounded to {@value #DOUBLE_SCALE_DIGITS} fractional digits, trailing zeros are dropped
+     * except the first one: 100.0, 0.5, 0.333.
+     */
+    public LineEncoder putDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= MAX_SCALED_DOUBLE) {
+            return putUtf8(Double.toString(value));
+        }
+        long scaled = Math.round(Math.abs(value) * DOUBLE_SCALE);
+        if (value < 0 && scaled != 0) {
+            put((byte) '-');
+        }
+        putLong(scaled / DOUBLE_SCALE);
+        long fraction = scaled % DOUBLE_SCALE;
+        int i = digits.length;
+        for (int n = 0; n < DOUBLE_SCALE_DIGITS; n++) {
+            digits[--i] = (byte) ('0' + (fraction % 10));
+            fraction /= 10;
+        }
+        int end = digits.length;
+        while (end > i + 1 && digits[end - 1] == '0') {
+            end--;
+        }
+        ensureRemaining(end - i + 1);
+        buffer.put((byte) '.').put(digits, i, end - i);
+        return this;
+    }
+
+    public LineEncoder putUtf8(CharSequence s) {
+        return putUtf8(s, 0, s.length());
+    }
+
+    public LineEncoder putUtf8(CharSequence s, int from, int to) {
+        ensureRemaining(3 * (to - from));
+        for (int i = from; i < to; i++) {
+            i = putChar(s, i, to);
+        }
+        return this;
+    }
+
+    /**
+     * Encodes one char (or a surrogate pair) at the given index, returns the index of the last consumed char.
+     * Unpaired surrogates are replaced with '?' the same way {@link String#getBytes(java.nio.charset.Charset)} does.
+     * The caller guarantees enough remaining space (three bytes per char).
+     */
+    private int putChar(CharSequence s, int i, int to) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isSurrogate(c)) {
+            if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(i + 1));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+                return i + 1;
+            }
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+        return i;
+    }
+
+    /**
+     * Same output as {@link AtsdUtil#escapeCSV(String)}.
+     */
+    public LineEncoder putEscapedCsv(String s) {
+        if (s == null) {
+            return put(EMPTY_MESSAGE);
+        }
+        int from = 0;
+        int to = s.length();
+        while (from < to && s.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && s.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        if (from == to) {
+            return put(EMPTY_MESSAGE);
+        }
+        boolean csvQuoted = false;
+        boolean quoted = false;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                csvQuoted = true;
+                break;
+            } else if (c == ' ') {
+                quoted = true;
+            }
+        }
+        if (!csvQuoted && !quoted) {
+            return putUtf8(s, from, to);
+        }
+        ensureRemaining(6 * (to - from) + 2);
+        buffer.put(QUOTE);
+        for (int i = from; i < to; i++) {
+            if (csvQuoted && s.charAt(i) == '"') {
+                buffer.put(QUOTE);
+            }
+            i = putChar(s, i, to);
+        }
+        buffer.put(QUOTE);
+        return this;
+    }
+
+    /**
+     * Same output as {@link AtsdUtil#sanitizeValue(String)}.
+     */
+    public LineEncoder putSanitizedValue(String s) {
+        if (s == null) {
+            return put(EMPTY_MESSAGE);
+        }
+        int from = 0;
+        int to = Math.min(s.length(), TRUNCATE_SIZE);
+        // line breaks are replaced with the "\n" literal before trimming, so they are never trimmed
+        while (from < to && isTrimmedInValue(s.charAt(from))) {
+            from++;
+        }
+        while (to > from && isTrimmedInValue(s.charAt(to - 1))) {
+            to--;
+        }
+        if (from == to) {
+            return put(EMPTY_MESSAGE);
+        }
+        boolean csvQuoted = false;
+        boolean quoted = false;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '"') {
+                csvQuoted = true;
+                break;
+            } else if (c == ' ' || c == '=' || c == '\t') {
+                quoted = true;
+            }
+        }
+        ensureRemaining(6 * (to - from) + 2);
+        if (csvQuoted || quoted) {
+            buffer.put(QUOTE);
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '\r' || c == '\n') {
+                buffer.put((byte) '\\').put((byte) 'n');
+                while (i + 1 < to && (s.charAt(i + 1) == '\r' || s.charAt(i + 1) == '\n')) {
+                    i++;
+                }
+            } else {
+                if (csvQuoted && c == '"') {
+                    buffer.put(QUOTE);
+                }
+                i = putChar(s, i, to);
+            }
+        }
+        if (csvQuoted || quoted) {
+            buffer.put(QUOTE);
+        }
+        return this;
+    }
+
+    private static boolean isTrimmedInValue(char c) {
+        return c <= ' ' && c != '\r' && c != '\n';
+    }
+
+    /**
+     * Same output as {@link AtsdUtil#sanitizeName(String)}.
+     */
+    public LineEncoder putSanitizedName(String s) {
+        int from = 0;
+        int to = s.length();
+        while (from < to && s.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && s.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        boolean csvQuoted = false;
+        boolean quoted = false;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '"') {
+                csvQuoted = true;
+                break;
+            } else if (c == '=') {
+                quoted = true;
+            }
+        }
+        ensureRemaining(6 * (to - from) + 2);
+        if (csvQuoted || quoted) {
+            buffer.put(QUOTE);
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (AtsdUtil.isWhitespace(c)) {
+                buffer.put((byte) '_');
+            } else {
+                if (csvQuoted && c == '"') {
+                    buffer.put(QUOTE);
+                }
+                i = putChar(s, i, to);
+            }
+        }
+        if (csvQuoted || quoted) {
+            buffer.put(QUOTE);
+        }
+        return this;
+    }
+}
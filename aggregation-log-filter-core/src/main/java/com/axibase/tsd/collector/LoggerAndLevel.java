@@ -18,6 +18,8 @@ package com.axibase.tsd.collector;
 public class LoggerAndLevel<L> {
     private final L level;
     private final String logger;
+    // encoded " t:level=<level> t:logger=<logger>" counter line ending, not part of the identity
+    private byte[] counterSuffix;
 
     public LoggerAndLevel(L level, String logger) {
         if (level == null) {
@@ -52,4 +54,12 @@ public class LoggerAndLevel<L> {
     public String getLogger() {
         return logger;
     }
+
+    byte[] getCounterSuffix() {
+        return counterSuffix;
+    }
+
+    void setCounterSuffix(byte[] counterSuffix) {
+        this.counterSuffix = counterSuffix;
+    }
 }
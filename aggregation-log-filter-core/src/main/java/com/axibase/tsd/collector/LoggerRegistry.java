@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Assigns dense int ids to logger keys. Ids are never reused, so counters and trigger state
+ * can be kept in arrays indexed by id.
+ * <p>
+ * Logging frameworks pass the same logger name instance with every event of a logger, so the id is
+ * first looked up in an open addressing table keyed by identity, without hashing or comparing the name.
+ * Lookups never allocate. A key instance missing from the table is looked up in a concurrent map and added
+ * to the table, up to twice as many instances as registered keys, so callers passing a new instance
+ * with every event do not grow the table without bound.
+ */
+public class LoggerRegistry<K> {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int INITIAL_TABLE_SIZE = 256;
+    private static final int MIN_TABLE_ENTRIES = 1024;
+
+    private volatile IdentityTable table = new IdentityTable(INITIAL_TABLE_SIZE);
+    private final ConcurrentMap<K, Integer> ids = new ConcurrentHashMap<>();
+    private volatile Object[] keys = new Object[INITIAL_CAPACITY];
+    private volatile int size;
+
+    public int idOf(K key) {
+        final int cached = table.get(key);
+        if (cached >= 0) {
+            return cached;
+        }
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = register(key);
+        }
+        if (table.count < Math.max(MIN_TABLE_ENTRIES, size << 1)) {
+            cache(key, id);
+        }
+        return id;
+    }
+
+    private synchronized void cache(K key, int id) {
+        IdentityTable current = table;
+        if (current.count + 1 > current.length() >> 1) {
+            current = current.grow();
+            table = current;
+        }
+        current.put(key, id);
+    }
+
+    private synchronized int register(K key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        final int next = size;
+        if (next == keys.length) {
+            keys = Arrays.copyOf(keys, next << 1);
+        }
+        keys[next] = key;
+        size = next + 1;
+        ids.put(key, next);
+        return next;
+    }
+
+    @SuppressWarnings("unchecked")
+    public K key(int id) {
+        return (K) keys[id];
+    }
+
+    /**
+     * @return number of registered keys, ids are in the range [0, size)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Linear probing table of key instances and their ids. Readers are lock-free, entries are added
+     * under the registry lock and never removed, a full table is replaced by a larger copy.
+     */
+    private static final class IdentityTable {
+        private final AtomicReferenceArray<Object> keys;
+        private final AtomicIntegerArray ids;
+        private final int mask;
+        // guarded by the registry lock
+        private volatile int count;
+
+        IdentityTable(int length) {
+            keys = new AtomicReferenceArray<>(length);
+            ids = new AtomicIntegerArray(length);
+            mask = length - 1;
+        }
+
+        int length() {
+            return mask + 1;
+        }
+
+        /**
+         * @return id of the key instance or -1
+         */
+        int get(Object key) {
+            for (int i = System.identityHashCode(key) & mask; ; i = (i + 1) & mask) {
+                final Object k = keys.get(i);
+                if (k == key) {
+                    return ids.get(i);
+                }
+                if (k == null) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(Object key, int id) {
+            for (int i = System.identityHashCode(key) & mask; ; i = (i + 1) & mask) {
+                final Object k = keys.get(i);
+                if (k == key) {
+                    return;
+                }
+                if (k == null) {
+                    // the id is visible before the key which readers compare
+                    ids.set(i, id);
+                    keys.set(i, key);
+                    count++;
+                    return;
+                }
+            }
+        }
+
+        IdentityTable grow() {
+            final IdentityTable grown = new IdentityTable(length() << 1);
+            for (int i = 0; i <= mask; i++) {
+                final Object k = keys.get(i);
+                if (k != null) {
+                    grown.put(k, ids.get(i));
+                }
+            }
+            return grown;
+        }
+    }
+}
@@ -13,33 +13,29 @@
  * permissions and limitations under the License.
  */
 
+
 package com.axibase.tsd.collector;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+/**
+ * Clock that changes only when it is set or advanced explicitly.
+ */
+public class ManualClock implements Clock {
+    private volatile long now;
 
-public class CountedQueue<E> extends ConcurrentLinkedQueue<E> {
-    private AtomicInteger count = new AtomicInteger();
+    public ManualClock(long now) {
+        this.now = now;
+    }
 
     @Override
-    public boolean offer(E e) {
-        boolean offer = super.offer(e);
-        if (offer) {
-            count.incrementAndGet();
-        }
-        return offer;
+    public long currentTimeMillis() {
+        return now;
     }
 
-    @Override
-    public E poll() {
-        E value = super.poll();
-        if (value != null) {
-            count.decrementAndGet();
-        }
-        return value;
+    public synchronized void setTime(long now) {
+        this.now = now;
     }
 
-    public int getCount() {
-        return count.get();
+    public synchronized void advance(long ms) {
+        now += ms;
     }
 }
@@ -22,9 +22,8 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.RuntimeMXBean;
-import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
-import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
@@ -36,21 +35,52 @@ public class MessageHelper {
     private static final long PROPERTY_SEND_INTERVAL = 15 * 60 * 1000L;
     private static final String SERIES_COMMAND_PREFIX = "series e:";
     private static final String PROPERTY_COMMAND_PREFIX = "property e:";
+    private static final byte[] LEVEL_TAG_BYTES = LEVEL_TAG.getBytes(AtsdUtil.UTF_8);
+    private static final byte[] LOGGER_TAG_BYTES = " t:logger=".getBytes(AtsdUtil.UTF_8);
+    private static final byte[] SEVERITY_TAG_BYTES = " t:severity=".getBytes(AtsdUtil.UTF_8);
+    private static final byte[] NORMAL_SEVERITY_BYTES = "NORMAL".getBytes(AtsdUtil.UTF_8);
+    private static final byte[] SOURCE_TAG_BYTES = " t:source=".getBytes(AtsdUtil.UTF_8);
+    private static final byte[] TAG_PREFIX_BYTES = " t:".getBytes(AtsdUtil.UTF_8);
+    private static final byte[] TIME_BYTES = " ms:".getBytes(AtsdUtil.UTF_8);
+    private static final byte LINE_END = '\n';
+    private static final int FRAGMENT_CACHE_SIZE = 1024;
     private SeriesSenderConfig seriesSenderConfig;
-    private ByteBuffer seriesCounterPrefix;
-    private ByteBuffer seriesTotalRatePrefix;
-    private ByteBuffer seriesTotalCounterPrefix;
-    private ByteBuffer messagePrefix;
+    private byte[] seriesCounterPrefix;
+    private byte[] seriesTotalRatePrefix;
+    private byte[] seriesTotalCounterPrefix;
+    private byte[] messagePrefix;
+    private final LineEncoder encoder;
+    private final LineEncoder fragmentEncoder = new LineEncoder(256, false);
+    // " t:severity=<severity> t:level=<level>"
+    private final FragmentCache<String> levelTags = new FragmentCache<>(FRAGMENT_CACHE_SIZE);
+    private final FragmentCache<String> sourceTags = new FragmentCache<>(FRAGMENT_CACHE_SIZE);
+    private final Map<String, FragmentCache<String>> locationTags = new HashMap<>();
     private PropertyBuffers propBuffers;
     private Map<String, String> tags;
     private String entity;
     private String command;
     private long lastPropertySentTime;
+    private Clock clock = CachedClock.INSTANCE;
+
+    public MessageHelper() {
+        this(false);
+    }
+
+    /**
+     * @param directBuffer encode commands into a direct buffer, which saves a copy for NIO channels
+     */
+    public MessageHelper(boolean directBuffer) {
+        encoder = new LineEncoder(LineEncoder.DEFAULT_CAPACITY, directBuffer);
+    }
 
     public void setSeriesSenderConfig(SeriesSenderConfig seriesSenderConfig) {
         this.seriesSenderConfig = seriesSenderConfig;
     }
 
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
     public void setTags(Map<String, String> tags) {
         this.tags = tags;
     }
@@ -75,7 +105,7 @@ public class MessageHelper {
         sendAggregatorSettingsProperty(writer, stringSettings);
         sendAggregatorRuntimeProperty(writer);
         sendAggregatorOSProperty(writer);
-        lastPropertySentTime = System.currentTimeMillis();
+        lastPropertySentTime = clock.currentTimeMillis();
 
         {
             StringBuilder sb = new StringBuilder(SERIES_COMMAND_PREFIX).append(entity);
@@ -83,7 +113,7 @@ public class MessageHelper {
             sb.append(" m:").append(AtsdUtil.sanitizeName(
                     seriesSenderConfig.getMetricPrefix() + seriesSenderConfig.getCounterSuffix())).append(
                     "=");
-            seriesCounterPrefix = ByteBuffer.wrap(sb.toString().getBytes(AtsdUtil.UTF_8));
+            seriesCounterPrefix = sb.toString().getBytes(AtsdUtil.UTF_8);
         }
         {
             StringBuilder sb = new StringBuilder(SERIES_COMMAND_PREFIX).append(entity);
@@ -91,7 +121,7 @@ public class MessageHelper {
             sb.append(" m:").append(AtsdUtil.sanitizeName(
                     seriesSenderConfig.getMetricPrefix() + seriesSenderConfig.getTotalSuffix() + seriesSenderConfig.getRateSuffix())).append(
                     "=");
-            seriesTotalRatePrefix = ByteBuffer.wrap(sb.toString().getBytes(AtsdUtil.UTF_8));
+            seriesTotalRatePrefix = sb.toString().getBytes(AtsdUtil.UTF_8);
         }
         {
             StringBuilder sb = new StringBuilder(SERIES_COMMAND_PREFIX).append(entity);
@@ -99,14 +129,14 @@ public class MessageHelper {
             sb.append(" m:").append(AtsdUtil.sanitizeName(
                     seriesSenderConfig.getMetricPrefix() + seriesSenderConfig.getTotalSuffix() + seriesSenderConfig.getCounterSuffix())).append(
                     "=");
-            seriesTotalCounterPrefix = ByteBuffer.wrap(sb.toString().getBytes(AtsdUtil.UTF_8));
+            seriesTotalCounterPrefix = sb.toString().getBytes(AtsdUtil.UTF_8);
         }
         {
             StringBuilder sb = new StringBuilder("message e:").append(entity);
             appendTags(sb);
             unsafeAppendTag(sb, "type", "logger");
             sb.append(" m:");
-            messagePrefix = ByteBuffer.wrap(sb.toString().getBytes(AtsdUtil.UTF_8));
+            messagePrefix = sb.toString().getBytes(AtsdUtil.UTF_8);
         }
     }
 
@@ -255,73 +285,129 @@ public class MessageHelper {
     }
 
     public void writeCounter(WritableByteChannel writer,
+                             long time,
                              LoggerAndLevel key,
                              String levelString,
                              long value) throws IOException {
-        StringBuilder sb = new StringBuilder(String.valueOf(value));
-        sb.append(LEVEL_TAG).append(levelString);
-        sb.append(" t:logger=").append(AtsdUtil.sanitizeValue(key.getLogger()));
-        sb.append("\n");
-        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(seriesCounterPrefix.remaining() + bytes.length)
-                .put(seriesCounterPrefix.duplicate()).put(bytes);
-        byteBuffer.rewind();
-        writer.write(byteBuffer);
+        synchronized (encoder) {
+            // the suffix is encoded once and kept on the key of the counter history
+            byte[] suffix = key.getCounterSuffix();
+            if (suffix == null) {
+                suffix = fragmentEncoder.clear()
+                        .put(LEVEL_TAG_BYTES).putUtf8(levelString)
+                        .put(LOGGER_TAG_BYTES).putSanitizedValue(key.getLogger())
+                        .toByteArray();
+                key.setCounterSuffix(suffix);
+            }
+            encoder.clear()
+                    .put(seriesCounterPrefix)
+                    .putLong(value)
+                    .put(suffix)
+                    .put(TIME_BYTES).putLong(time)
+                    .put(LINE_END);
+            writer.write(encoder.flip());
+        }
     }
 
     public void writeTotalCounter(WritableByteChannel writer,
                                   long time,
                                   CounterWithSum counterWithSum,
                                   String levelString) throws IOException {
-        StringBuilder sb = new StringBuilder(String.valueOf(counterWithSum.getSum()));
-        sb.append(LEVEL_TAG).append(levelString);
-        sb.append("\n");
-        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(seriesTotalCounterPrefix.remaining() + bytes.length)
-                .put(seriesTotalCounterPrefix.duplicate()).put(bytes);
-        byteBuffer.rewind();
-        writer.write(byteBuffer);
+        synchronized (encoder) {
+            encoder.clear()
+                    .put(seriesTotalCounterPrefix)
+                    .putLong(counterWithSum.getSum())
+                    .put(LEVEL_TAG_BYTES).putUtf8(levelString)
+                    .put(TIME_BYTES).putLong(time)
+                    .put(LINE_END);
+            writer.write(encoder.flip());
+        }
     }
 
     public void writeTotalRate(WritableByteChannel writer,
                                long time,
                                double rate,
                                String levelString) throws IOException {
-        StringBuilder sb = new StringBuilder(String.valueOf(rate));
-        sb.append(LEVEL_TAG).append(levelString);
-        sb.append("\n");
-        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(seriesTotalRatePrefix.remaining() + bytes.length)
-                .put(seriesTotalRatePrefix.duplicate()).put(bytes);
-        byteBuffer.rewind();
+        synchronized (encoder) {
+            encoder.clear()
+                    .put(seriesTotalRatePrefix)
+                    .putDouble(rate)
+                    .put(LEVEL_TAG_BYTES).putUtf8(levelString)
+                    .put(TIME_BYTES).putLong(time)
+                    .put(LINE_END);
+            writer.write(encoder.flip());
+        }
     }
 
+    /**
+     * @param time event time in milliseconds
+     */
     public void writeMessage(WritableByteChannel writer,
+                             long time,
                              StringBuilder sb,
                              String message,
                              String levelValue,
                              String loggerName,
                              Map<String, String> locationInformation) throws IOException {
-        sb.append(AtsdUtil.escapeCSV(message));
-        if ("debug".equalsIgnoreCase(levelValue) || "trace".equalsIgnoreCase(levelValue))
-            sb.append(" t:severity=").append("NORMAL");
-        else
-            sb.append(" t:severity=").append(levelValue);
-        sb.append(" t:level=").append(levelValue);
-        sb.append(" t:source=").append(AtsdUtil.sanitizeValue(loggerName));
-        for (Map.Entry<String, String> entry : locationInformation.entrySet()) {
-            sb.append(" t:").append(AtsdUtil.sanitizeName(entry.getKey())).append("=").append(AtsdUtil.sanitizeValue(entry.getValue()));
+        synchronized (encoder) {
+            encoder.clear().put(messagePrefix);
+            if (sb.length() > 0) {
+                encoder.putUtf8(sb);
+            }
+            encoder.putEscapedCsv(message)
+                    .put(levelFragment(levelValue))
+                    .put(tagFragment(sourceTags, SOURCE_TAG_BYTES, loggerName));
+            for (Map.Entry<String, String> entry : locationInformation.entrySet()) {
+                encoder.put(locationFragment(entry.getKey(), entry.getValue()));
+            }
+            encoder.put(TIME_BYTES).putLong(time).put(LINE_END);
+            writer.write(encoder.flip());
         }
-        sb.append("\n");
-        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(messagePrefix.remaining() + bytes.length)
-                .put(messagePrefix.duplicate()).put(bytes);
-        byteBuffer.rewind();
-        writer.write(byteBuffer);
+    }
+
+    private byte[] levelFragment(String levelValue) {
+        byte[] fragment = levelTags.get(levelValue);
+        if (fragment == null) {
+            fragmentEncoder.clear().put(SEVERITY_TAG_BYTES);
+            if ("debug".equalsIgnoreCase(levelValue) || "trace".equalsIgnoreCase(levelValue)) {
+                fragmentEncoder.put(NORMAL_SEVERITY_BYTES);
+            } else {
+                fragmentEncoder.putUtf8(levelValue);
+            }
+            fragment = fragmentEncoder.put(LEVEL_TAG_BYTES).putUtf8(levelValue).toByteArray();
+            levelTags.put(levelValue, fragment);
+        }
+        return fragment;
+    }
+
+    private byte[] tagFragment(FragmentCache<String> cache, byte[] tagPrefix, String value) {
+        byte[] fragment = cache.get(value);
+        if (fragment == null) {
+            fragment = fragmentEncoder.clear().put(tagPrefix).putSanitizedValue(value).toByteArray();
+            cache.put(value, fragment);
+        }
+        return fragment;
+    }
+
+    private byte[] locationFragment(String tagName, String value) {
+        FragmentCache<String> cache = locationTags.get(tagName);
+        if (cache == null) {
+            cache = new FragmentCache<>(FRAGMENT_CACHE_SIZE);
+            locationTags.put(tagName, cache);
+        }
+        byte[] fragment = cache.get(value);
+        if (fragment == null) {
+            fragment = fragmentEncoder.clear()
+                    .put(TAG_PREFIX_BYTES).putSanitizedName(tagName)
+                    .put((byte) '=').putSanitizedValue(value)
+                    .toByteArray();
+            cache.put(value, fragment);
+        }
+        return fragment;
     }
 
     public void checkSentStatus(WritableByteChannel writer) {
-        long currentTime = System.currentTimeMillis();
+        long currentTime = clock.currentTimeMillis();
         if (currentTime - lastPropertySentTime >= PROPERTY_SEND_INTERVAL) {
             try {
                 if (propBuffers.isAllBuffersInitialized()) {
@@ -21,9 +21,16 @@ import java.nio.channels.WritableByteChannel;
 import java.util.Map;
 
 public interface MessageWriter<E, K, L> {
-    void writeStatMessages(WritableByteChannel writer, Map<K, EventCounter<L>> diff, long deltaTime) throws IOException;
+    /**
+     * Writes series of the counters changed during a flush interval.
+     *
+     * @param deltaTime interval length in milliseconds
+     * @param time      interval end time, used as the series timestamp
+     */
+    void writeStatMessages(WritableByteChannel writer, Map<K, EventCounter<L>> diff, long deltaTime, long time)
+            throws IOException;
 
-    void writeSingles(WritableByteChannel writer, CountedQueue<EventWrapper<E>> singles) throws IOException;
+    void writeSingle(WritableByteChannel writer, EventWrapper<E> wrapper);
 
     void start(WritableByteChannel writer, int level, int intervalSeconds, Map<String,String> stringSettings);
 
@@ -31,7 +38,16 @@ public interface MessageWriter<E, K, L> {
 
     void stop();
 
-    boolean sendErrorInstance(WritableByteChannel writer, E event);
+    /**
+     * @return true if the event carries a {@link Error} and must be sent as a message without sampling
+     */
+    boolean isErrorInstance(E event);
 
     EventWrapper<E> createWrapper(E event, int lines);
+
+    /**
+     * Sets the clock for command timestamps, writers that do not use time may ignore it.
+     */
+    default void setClock(Clock clock) {
+    }
 }
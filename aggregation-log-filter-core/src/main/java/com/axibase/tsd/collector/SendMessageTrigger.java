@@ -15,9 +15,26 @@
 
 package com.axibase.tsd.collector;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Decides which events are sent as messages. Events of each key are sampled geometrically:
+ * the events with indexes 1, m, m^2, ... are sent, where m is the send multiplier,
+ * and the index is reset when the reset interval elapses since the first event of the period.
+ * <p>
+ * The sampling state of a key is packed into a single word updated with CAS:
+ * period start time in {@value #TIME_UNIT_MS} ms units, number of sent events and event count.
+ * <p>
+ * The history is a table with one slot per key up to the history capacity, so its size does not depend
+ * on the number of loggers ever seen. A key id may use one of two slots. When both are taken by other keys,
+ * the less recently used one is replaced, so adding a key never scans the table. Entries touched in the current
+ * time unit are not replaced, so keys competing for the same slots do not keep restarting each other's sampling.
+ * Events of a key without a slot are sampled together with other such keys by a shared overflow history.
+ * Keys idle longer than the reset interval carry no state worth keeping and are removed by {@link #evictIdle()}.
+ */
 public abstract class SendMessageTrigger<E> {
     public static final double ERROR_SKIP_MULTIPLIER = 2.0;
     public static final double WARN_SKIP_MULTIPLIER = 3.0;
@@ -29,33 +46,140 @@ public abstract class SendMessageTrigger<E> {
     public static final double DEFAULT_SEND_MULTIPLIER = 1.0;
     public static final long DEFAULT_RESET_INTERVAL = 600 * 1000L;
     public static final int MIN_RESET_INTERVAL_SECONDS = 1;
-    private Map<String, History> keyToHistory = new ConcurrentHashMap<String, History>();
+    public static final int DEFAULT_HISTORY_CAPACITY = 10000;
+    public static final int MIN_HISTORY_CAPACITY = 16;
+
+    private static final int TIME_UNIT_MS = 16;
+    private static final int TIME_UNIT_SHIFT = 4;
+    private static final int COUNT_BITS = 26;
+    private static final int SENT_BITS = 8;
+    private static final int TIME_BITS = 64 - COUNT_BITS - SENT_BITS;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long SENT_MASK = (1L << SENT_BITS) - 1;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    // keep elapsed time comparisons far from the wrap-around of the packed time field
+    public static final long MAX_RESET_INTERVAL_SECONDS = ((TIME_MASK >> 1) * TIME_UNIT_MS) / 1000;
+
+    private final LoggerRegistry<String> keys = new LoggerRegistry<>();
+    private volatile AtomicReferenceArray<History> histories = new AtomicReferenceArray<>(DEFAULT_HISTORY_CAPACITY);
+    private final History overflow = new History(-1, 0);
+    private final AtomicInteger historySize = new AtomicInteger();
+    private final LongAdder evictionCount = new LongAdder();
     private int stackTraceLines = DEFAULT_STACK_TRACE_LINES;
+    private int historyCapacity = DEFAULT_HISTORY_CAPACITY;
 
-    private double sendMultiplier = DEFAULT_SEND_MULTIPLIER;
     private long resetInterval = DEFAULT_RESET_INTERVAL;
+    private Clock clock = CachedClock.INSTANCE;
+    // thresholds[n] is the index of the event sent after n sent events
+    private long[] thresholds = createThresholds(DEFAULT_SEND_MULTIPLIER);
 
     public SendMessageTrigger() {
     }
 
     public boolean onEvent(E event) {
-        long st = System.currentTimeMillis();
-        String key = resolveKey(event);
-        History history = keyToHistory.get(key);
-        if (history == null) {
-            history = new History();
-            history.reset();
-            keyToHistory.put(key, history);
+        return accept(event) && onEvent(keys.idOf(resolveKey(event)));
+    }
+
+    /**
+     * Same as {@link #onEvent(Object)} for the event key already resolved to an id by a {@link LoggerRegistry}.
+     * All ids passed to a trigger must come from the same registry.
+     */
+    public boolean onEvent(E event, int keyId) {
+        return accept(event) && onEvent(keyId);
+    }
+
+    /**
+     * Checks whether the event is handled by this trigger before it is sampled. Called by both
+     * {@link #onEvent(Object)} and {@link #onEvent(Object, int)}, so subclasses filtering events
+     * should override this method rather than {@code onEvent}.
+     *
+     * @return false to skip the event without counting it
+     */
+    protected boolean accept(E event) {
+        return true;
+    }
+
+    /**
+     * Registers an event of the trigger level for the key id without the event object.
+     *
+     * @return true if the event should be sent
+     */
+    public boolean onEvent(int keyId) {
+        final long now = now();
+        final History history = history(keyId, now);
+        if (history.lastAccess != now) {
+            history.lastAccess = now;
+        }
+        return history.onEvent(now, thresholds, resetInterval);
+    }
+
+    private History history(int keyId, long now) {
+        final AtomicReferenceArray<History> table = histories;
+        final int length = table.length();
+        final int first = keyId % length;
+        final int second = (first + (length >> 1)) % length;
+        while (true) {
+            final History a = table.get(first);
+            if (a != null && a.keyId == keyId) {
+                return a;
+            }
+            final History b = table.get(second);
+            if (b != null && b.keyId == keyId) {
+                return b;
+            }
+            final int slot;
+            final History replaced;
+            if (a == null || (b != null && age(a, now) >= age(b, now))) {
+                slot = first;
+                replaced = a;
+            } else {
+                slot = second;
+                replaced = b;
+            }
+            if (replaced != null && replaced.lastAccess == now) {
+                return overflow;
+            }
+            final History created = new History(keyId, now);
+            if (table.compareAndSet(slot, replaced, created)) {
+                if (replaced == null) {
+                    historySize.incrementAndGet();
+                } else {
+                    evictionCount.increment();
+                }
+                return created;
+            }
         }
-        if (st - history.first > resetInterval) {
-            history.reset();
+    }
+
+    private long now() {
+        return (clock.currentTimeMillis() >>> TIME_UNIT_SHIFT) & TIME_MASK;
+    }
+
+    /**
+     * Removes keys idle longer than the reset interval. Called periodically by the aggregator.
+     */
+    public void evictIdle() {
+        final long now = now();
+        final AtomicReferenceArray<History> table = histories;
+        int evicted = 0;
+        for (int slot = 0; slot < table.length(); slot++) {
+            History history = table.get(slot);
+            if (history != null && isIdle(history, now) && table.compareAndSet(slot, history, null)) {
+                evicted++;
+            }
         }
-        history.count++;
-        boolean result = history.count >= history.modEvery;
-        if (result && sendMultiplier > 1 && history.count >= 1) {
-            history.update(sendMultiplier);
+        if (evicted > 0) {
+            historySize.addAndGet(-evicted);
+            evictionCount.add(evicted);
         }
-        return result;
+    }
+
+    private static long age(History history, long now) {
+        return (now - history.lastAccess) & TIME_MASK;
+    }
+
+    private boolean isIdle(History history, long now) {
+        return age(history, now) << TIME_UNIT_SHIFT > resetInterval;
     }
 
     public abstract String resolveKey(E event);
@@ -70,35 +194,100 @@ public abstract class SendMessageTrigger<E> {
 
     public void setSendMultiplier(double sendMultiplier) {
         if (sendMultiplier > DEFAULT_SEND_MULTIPLIER) {
-            this.sendMultiplier = sendMultiplier;
+            this.thresholds = createThresholds(sendMultiplier);
         }
     }
 
+    /**
+     * Sets the maximum number of keys with sampling state. Existing state is discarded, call before logging starts.
+     */
+    public void setHistoryCapacity(int historyCapacity) {
+        if (historyCapacity >= MIN_HISTORY_CAPACITY && historyCapacity != this.historyCapacity) {
+            this.historyCapacity = historyCapacity;
+            histories = new AtomicReferenceArray<>(historyCapacity);
+            historySize.set(0);
+        }
+    }
+
+    public int getHistoryCapacity() {
+        return historyCapacity;
+    }
+
+    public int getHistorySize() {
+        return historySize.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
     public void setResetIntervalSeconds(long resetIntervalSeconds) {
         if (resetIntervalSeconds >= MIN_RESET_INTERVAL_SECONDS) {
-            this.resetInterval = resetIntervalSeconds * 1000;
+            this.resetInterval = Math.min(resetIntervalSeconds, MAX_RESET_INTERVAL_SECONDS) * 1000;
         }
     }
 
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
     public void init() {
         // do nothing
     }
 
     public abstract int getIntLevel();
 
-    private static class History {
-        private volatile long count;
-        private volatile long first;
-        private double modEvery;
+    private static long[] createThresholds(double sendMultiplier) {
+        if (sendMultiplier <= DEFAULT_SEND_MULTIPLIER) {
+            return new long[]{1};
+        }
+        long[] result = new long[(int) SENT_MASK + 1];
+        double modEvery = 1;
+        for (int i = 0; i < result.length - 1; i++) {
+            result[i] = modEvery > COUNT_MASK ? Long.MAX_VALUE : (long) Math.ceil(modEvery);
+            modEvery = modEvery * sendMultiplier;
+        }
+        // the sent events counter is saturated, skip everything till the end of the period
+        result[result.length - 1] = Long.MAX_VALUE;
+        return result;
+    }
+
+    private static final class History {
+        private static final AtomicLongFieldUpdater<History> STATE_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(History.class, "state");
 
-        public void reset() {
-            count = 0;
-            modEvery = 1;
-            first = System.currentTimeMillis();
+        private final int keyId;
+        private volatile long state;
+        // last event time, written only when the coarse time changes
+        private volatile long lastAccess;
+
+        History(int keyId, long now) {
+            this.keyId = keyId;
+            lastAccess = now;
         }
 
-        public void update(double sendMultiplier) {
-            modEvery = modEvery * sendMultiplier;
+        boolean onEvent(long now, long[] thresholds, long resetInterval) {
+            while (true) {
+                final long current = state;
+                long start = current >>> (COUNT_BITS + SENT_BITS);
+                long sent = (current >>> COUNT_BITS) & SENT_MASK;
+                long count = current & COUNT_MASK;
+                if (count == 0 || (((now - start) & TIME_MASK) << TIME_UNIT_SHIFT) > resetInterval) {
+                    start = now;
+                    sent = 0;
+                    count = 1;
+                } else if (count < COUNT_MASK) {
+                    count++;
+                }
+                final boolean result = count >= thresholds[(int) Math.min(sent, thresholds.length - 1)];
+                if (result && thresholds.length > 1) {
+                    sent++;
+                }
+                final long next = (start << (COUNT_BITS + SENT_BITS)) | (sent << COUNT_BITS) | count;
+                if (STATE_UPDATER.compareAndSet(this, current, next)) {
+                    return result;
+                }
+            }
         }
     }
 }
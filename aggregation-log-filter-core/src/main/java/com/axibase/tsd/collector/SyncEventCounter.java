@@ -19,4 +19,9 @@ public interface SyncEventCounter<E, L> {
     EventCounter<L> updateAndCreateDiff(EventCounter<L> lastCount);
 
     void increment(E event);
+
+    /**
+     * Counts an event of the standard level with the given index without the event itself.
+     */
+    void incrementLevel(int levelIndex);
 }
@@ -29,10 +29,13 @@ public class SeriesSenderConfig {
     private static final long MINUTE = 60 * SECOND;
     public static final long DEFAULT_INTERVAL_MS = MINUTE;
     public static final long DEFAULT_MIN_INTERVAL_MS = 5 * SECOND;
+    public static final int DEFAULT_RATE_INTERVAL_SECONDS = 60;
     public static final int MIN_MESSAGE_SKIP_THRESHOLD = 10;
     public static final int DEFAULT_MESSAGE_SKIP_THRESHOLD = 100;
     public static final int MAX_MESSAGE_SKIP_THRESHOLD = 1000;
     public static final boolean DEFAULT_SEND_LOGGER_COUNTER = true;
+    public static final int DEFAULT_URGENT_ENQUEUE_TIMEOUT_MS = 10;
+    public static final boolean DEFAULT_DEFER_MESSAGE_FORMATTING = false;
 
     public static final SeriesSenderConfig DEFAULT = new SeriesSenderConfig();
 
@@ -41,7 +44,7 @@ public class SeriesSenderConfig {
     private long intervalMs = DEFAULT_INTERVAL_MS;
     private long minIntervalMs = DEFAULT_MIN_INTERVAL_MS;
     private int minIntervalThreshold;
-    private long rateIntervalMs = MINUTE;
+    private long rateIntervalMs = DEFAULT_RATE_INTERVAL_SECONDS * SECOND;
 
     private String rateSuffix = DEFAULT_RATE_SUFFIX;
     private String totalSuffix = DEFAULT_TOTAL_SUFFIX;
@@ -49,6 +52,8 @@ public class SeriesSenderConfig {
 
     private int messageSkipThreshold = DEFAULT_MESSAGE_SKIP_THRESHOLD;
     private int checkIntervalMs = DEFAULT_CHECK_INTERVAL_MS;
+    private int urgentEnqueueTimeoutMs = DEFAULT_URGENT_ENQUEUE_TIMEOUT_MS;
+    private boolean deferMessageFormatting = DEFAULT_DEFER_MESSAGE_FORMATTING;
 
     private boolean sendLoggerCounter = DEFAULT_SEND_LOGGER_COUNTER;
 
@@ -175,6 +180,26 @@ public class SeriesSenderConfig {
         this.checkIntervalMs = checkIntervalMs;
     }
 
+    public int getUrgentEnqueueTimeoutMs() {
+        return urgentEnqueueTimeoutMs;
+    }
+
+    public void setUrgentEnqueueTimeoutMs(int urgentEnqueueTimeoutMs) {
+        if (urgentEnqueueTimeoutMs < 0) {
+            throw new IllegalArgumentException(
+                    "Urgent enqueue timeout must by more than or equals 0, currently " + urgentEnqueueTimeoutMs);
+        }
+        this.urgentEnqueueTimeoutMs = urgentEnqueueTimeoutMs;
+    }
+
+    public boolean isDeferMessageFormatting() {
+        return deferMessageFormatting;
+    }
+
+    public void setDeferMessageFormatting(boolean deferMessageFormatting) {
+        this.deferMessageFormatting = deferMessageFormatting;
+    }
+
     public void setTotalCountInit(TotalCountInit countInit) {
         if (countInit != null && countInit.getLevel() != null && countInit.getLevel().trim().length() > 0) {
             totalCountInitMap.put(countInit.getLevel().trim(), countInit.getValue());
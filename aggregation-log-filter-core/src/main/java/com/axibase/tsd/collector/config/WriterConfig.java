@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.config;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Transport settings used by {@link com.axibase.tsd.collector.writer.AtsdWriterFactory}.
+ */
+public class WriterConfig {
+    public static final boolean DEFAULT_HTTP_BATCH = false;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024 * 1024;
+    public static final int MIN_MAX_BATCH_SIZE = 1024;
+    public static final boolean DEFAULT_HTTP_GZIP = false;
+    public static final int DEFAULT_GZIP_MIN_SIZE = 1024;
+    public static final boolean DEFAULT_TCP_NON_BLOCKING = false;
+    public static final int DEFAULT_TCP_QUEUE_SIZE = 4 * 1024 * 1024;
+    // fits into a 1500 byte MTU with IPv6 and UDP headers
+    public static final int DEFAULT_UDP_PAYLOAD_SIZE = 1452;
+    public static final int MIN_UDP_PAYLOAD_SIZE = 512;
+    // maximum UDP payload over IPv4
+    public static final int MAX_UDP_PAYLOAD_SIZE = 65507;
+    public static final long DEFAULT_SPOOL_MAX_SIZE = 64L * 1024 * 1024;
+    public static final long MIN_SPOOL_MAX_SIZE = 1024 * 1024;
+    public static final long DEFAULT_SPOOL_REPLAY_RATE = 256 * 1024;
+
+    public static final WriterConfig DEFAULT = new WriterConfig();
+
+    private boolean httpBatch = DEFAULT_HTTP_BATCH;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private boolean httpGzip = DEFAULT_HTTP_GZIP;
+    private int gzipMinSize = DEFAULT_GZIP_MIN_SIZE;
+    private boolean tcpNonBlocking = DEFAULT_TCP_NON_BLOCKING;
+    private int tcpQueueSize = DEFAULT_TCP_QUEUE_SIZE;
+    private int udpPayloadSize = DEFAULT_UDP_PAYLOAD_SIZE;
+    private String spoolDirectory;
+    private long spoolMaxSize = DEFAULT_SPOOL_MAX_SIZE;
+    private long spoolReplayRate = DEFAULT_SPOOL_REPLAY_RATE;
+    private int[] endpointWeights;
+
+    public boolean isHttpBatch() {
+        return httpBatch;
+    }
+
+    public void setHttpBatch(boolean httpBatch) {
+        this.httpBatch = httpBatch;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < MIN_MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Max batch size must be at least " + MIN_MAX_BATCH_SIZE +
+                    " bytes, currently " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public boolean isHttpGzip() {
+        return httpGzip;
+    }
+
+    public void setHttpGzip(boolean httpGzip) {
+        this.httpGzip = httpGzip;
+    }
+
+    public int getGzipMinSize() {
+        return gzipMinSize;
+    }
+
+    public void setGzipMinSize(int gzipMinSize) {
+        if (gzipMinSize < 0) {
+            throw new IllegalArgumentException("Gzip min size must be more than or equals 0, currently " + gzipMinSize);
+        }
+        this.gzipMinSize = gzipMinSize;
+    }
+
+    public boolean isTcpNonBlocking() {
+        return tcpNonBlocking;
+    }
+
+    public void setTcpNonBlocking(boolean tcpNonBlocking) {
+        this.tcpNonBlocking = tcpNonBlocking;
+    }
+
+    public int getTcpQueueSize() {
+        return tcpQueueSize;
+    }
+
+    public void setTcpQueueSize(int tcpQueueSize) {
+        if (tcpQueueSize < MIN_MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("TCP queue size must be at least " + MIN_MAX_BATCH_SIZE +
+                    " bytes, currently " + tcpQueueSize);
+        }
+        this.tcpQueueSize = tcpQueueSize;
+    }
+
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    public void setUdpPayloadSize(int udpPayloadSize) {
+        if (udpPayloadSize < MIN_UDP_PAYLOAD_SIZE || udpPayloadSize > MAX_UDP_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("UDP payload size must be between " + MIN_UDP_PAYLOAD_SIZE + " and " +
+                    MAX_UDP_PAYLOAD_SIZE + " bytes, currently " + udpPayloadSize);
+        }
+        this.udpPayloadSize = udpPayloadSize;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public long getSpoolMaxSize() {
+        return spoolMaxSize;
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        if (spoolMaxSize < MIN_SPOOL_MAX_SIZE) {
+            throw new IllegalArgumentException("Spool size must be at least " + MIN_SPOOL_MAX_SIZE +
+                    " bytes, currently " + spoolMaxSize);
+        }
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    public long getSpoolReplayRate() {
+        return spoolReplayRate;
+    }
+
+    public void setSpoolReplayRate(long spoolReplayRate) {
+        if (spoolReplayRate <= 0) {
+            throw new IllegalArgumentException("Spool replay rate must be positive, currently " + spoolReplayRate);
+        }
+        this.spoolReplayRate = spoolReplayRate;
+    }
+
+    /**
+     * @return relative share of writes for each endpoint of a multi-endpoint url, null for equal shares
+     */
+    public int[] getEndpointWeights() {
+        return endpointWeights;
+    }
+
+    /**
+     * @param endpointWeights comma-separated positive weights in the order of the url endpoints
+     */
+    public void setEndpointWeights(String endpointWeights) {
+        String[] values = StringUtils.split(endpointWeights, ", ");
+        if (values == null || values.length == 0) {
+            this.endpointWeights = null;
+            return;
+        }
+        int[] weights = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                weights[i] = Integer.parseInt(values[i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal endpoint weight: " + values[i]);
+            }
+            if (weights[i] <= 0) {
+                throw new IllegalArgumentException("Endpoint weight must be positive, currently " + weights[i]);
+            }
+        }
+        this.endpointWeights = weights;
+    }
+}
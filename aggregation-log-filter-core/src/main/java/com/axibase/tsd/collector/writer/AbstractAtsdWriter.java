@@ -23,12 +23,14 @@ public abstract class AbstractAtsdWriter implements WritableByteChannel {
     private InetSocketAddress address;
     private final String host;
     private final int port;
+    protected final CircuitBreaker circuitBreaker;
 
     public AbstractAtsdWriter(String host, int port) {
         if (host == null) throw new IllegalStateException("Host can not be null.");
         this.host = host;
         this.port = (port > 0) ? port : getDefaultPort();
         AtsdUtil.logInfo("Connecting to " + this.host + ":" + this.port);
+        circuitBreaker = new CircuitBreaker("ATSD " + this.host + ":" + this.port);
     }
 
     public InetSocketAddress getAddress() {
@@ -40,6 +42,10 @@ public abstract class AbstractAtsdWriter implements WritableByteChannel {
 
     protected abstract int getDefaultPort();
 
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
     @Override
     public String toString() {
         return "AbstractAtsdWriter{" +
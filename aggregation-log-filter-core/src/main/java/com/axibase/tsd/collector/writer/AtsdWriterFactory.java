@@ -1,9 +1,16 @@
 package com.axibase.tsd.collector.writer;
 
+import com.axibase.tsd.collector.AtsdUtil;
+import com.axibase.tsd.collector.config.WriterConfig;
 import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Anna Striganova on 06.06.18
@@ -11,6 +18,36 @@ import java.nio.channels.WritableByteChannel;
 public class AtsdWriterFactory {
 
     public static WritableByteChannel getWriter(String url, String ignoreSslErrors) throws URISyntaxException {
+        return getWriter(url, ignoreSslErrors, WriterConfig.DEFAULT);
+    }
+
+    public static WritableByteChannel getWriter(String url, String ignoreSslErrors, WriterConfig writerConfig)
+            throws URISyntaxException {
+        String[] urls = StringUtils.split(url, ", ");
+        if (urls.length == 0) throw new IllegalStateException("URL cannot be empty");
+        WritableByteChannel writer;
+        if (urls.length == 1) {
+            writer = createWriter(urls[0], ignoreSslErrors, writerConfig);
+        } else {
+            List<WritableByteChannel> writers = new ArrayList<>();
+            try {
+                for (String endpointUrl : urls) {
+                    writers.add(createWriter(endpointUrl, ignoreSslErrors, writerConfig));
+                }
+                writer = new CompositeAtsdWriter(writers, writerConfig.getEndpointWeights());
+            } catch (URISyntaxException | RuntimeException e) {
+                closeAll(writers);
+                throw e;
+            }
+        }
+        if (writerConfig.getSpoolDirectory() != null) {
+            return createSpool(writer, writerConfig);
+        }
+        return writer;
+    }
+
+    private static WritableByteChannel createWriter(String url, String ignoreSslErrors, WriterConfig writerConfig)
+            throws URISyntaxException {
         URI atsdURL = new URI(url);
         String scheme = StringUtils.lowerCase(atsdURL.getScheme());
         if (scheme == null) throw new IllegalStateException("Scheme cannot be empty");
@@ -20,16 +57,57 @@ public class AtsdWriterFactory {
         switch (scheme) {
 
             case "udp":
-                return new UdpAtsdWriter(host, port);
+                return new UdpAtsdWriter(host, port, writerConfig.getUdpPayloadSize());
             case "tcp":
+                if (writerConfig.isTcpNonBlocking()) {
+                    return new NioTcpAtsdWriter(host, port, writerConfig.getTcpQueueSize(),
+                            writerConfig.getMaxBatchSize());
+                }
                 return new TcpAtsdWriter(host, port);
             case "http":
+                if (writerConfig.isHttpBatch() || writerConfig.isHttpGzip()) {
+                    return createBatchWriter(atsdURL, ignoreSslErrors, writerConfig);
+                }
                 return new HttpAtsdWriter(atsdURL);
             case "https":
+                if (writerConfig.isHttpBatch() || writerConfig.isHttpGzip()) {
+                    return createBatchWriter(atsdURL, ignoreSslErrors, writerConfig);
+                }
                 return new HttpsAtsdWriter(atsdURL, ignoreSslErrors);
             default:
                 throw new IllegalStateException("Unsupported scheme");
         }
 
     }
+
+    private static void closeAll(List<WritableByteChannel> writers) {
+        for (WritableByteChannel writer : writers) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                AtsdUtil.logInfo("Could not close writer. " + e.getMessage());
+            }
+        }
+    }
+
+    private static WritableByteChannel createSpool(WritableByteChannel writer, WriterConfig writerConfig) {
+        File directory = new File(writerConfig.getSpoolDirectory());
+        try {
+            SpoolingAtsdWriter spool = new SpoolingAtsdWriter(writer, directory, writerConfig.getSpoolMaxSize());
+            spool.setReplayRate(writerConfig.getSpoolReplayRate());
+            spool.setMaxChunkSize(writerConfig.getMaxBatchSize());
+            return spool;
+        } catch (IOException e) {
+            AtsdUtil.logError("Could not open spool directory " + directory + ", commands are not spooled", e);
+            return writer;
+        }
+    }
+
+    private static BatchHttpAtsdWriter createBatchWriter(URI atsdURL, String ignoreSslErrors, WriterConfig writerConfig) {
+        BatchHttpAtsdWriter writer = new BatchHttpAtsdWriter(atsdURL, ignoreSslErrors);
+        if (writerConfig.isHttpGzip()) {
+            writer.setGzipMinSize(writerConfig.getGzipMinSize());
+        }
+        return writer;
+    }
 }
@@ -18,6 +18,7 @@ package com.axibase.tsd.collector.writer;
 import com.axibase.tsd.collector.AtsdUtil;
 import org.apache.commons.lang3.StringUtils;
 
+import javax.net.ssl.*;
 import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -25,15 +26,26 @@ import java.io.UnsupportedEncodingException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
 
 public abstract class BaseHttpAtsdWriter implements WritableByteChannel {
     public static final String DEFAULT_METHOD = "POST";
     public static final int DEFAULT_CHUNK_SIZE = 1024;
     private static final int DEFAULT_TIMEOUT_MS = 5000;
+    protected static final HostnameVerifier ALL_HOSTS_VALID = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return true;
+        }
+    };
     protected String method = DEFAULT_METHOD;
     protected URI uri;
     protected String credentials;
     protected int timeout = DEFAULT_TIMEOUT_MS;
+    protected final CircuitBreaker circuitBreaker;
 
     public BaseHttpAtsdWriter(URI uri) {
         this.uri = uri.getPath().isEmpty() ? uri.resolve("/api/v1/command") : uri;
@@ -43,6 +55,7 @@ public abstract class BaseHttpAtsdWriter implements WritableByteChannel {
         }else{
             throw new IllegalStateException("Credentials cannot be empty");
         }
+        circuitBreaker = new CircuitBreaker("ATSD " + uri.getHost() + ":" + uri.getPort());
     }
 
     protected void setMethod(String method) {
@@ -66,6 +79,10 @@ public abstract class BaseHttpAtsdWriter implements WritableByteChannel {
 
     public abstract int getStatusCode() throws IOException;
 
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
     protected void initConnection(HttpURLConnection con) throws IOException {
         con.setRequestMethod(method);
         if (StringUtils.isNotBlank(credentials)) {
@@ -92,4 +109,23 @@ public abstract class BaseHttpAtsdWriter implements WritableByteChannel {
         outputStream.write(data);
         return data.length;
     }
+
+    protected static SSLContext createTrustAllContext() throws NoSuchAlgorithmException, KeyManagementException {
+        TrustManager[] trustAllCerts = {new X509TrustManager() {
+            public X509Certificate[] getAcceptedIssuers() {
+                return null;
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] arg0, String arg1) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] arg0, String arg1) {
+            }
+        }};
+        SSLContext context = SSLContext.getInstance("SSL");
+        context.init(null, trustAllCerts, new SecureRandom());
+        return context;
+    }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Collects the commands of one flush cycle and hands them to the transport on {@link #flush()}
+ * in as few writes as possible. A write contains whole lines and is at most the maximum batch size long,
+ * unless a single line is longer. If the transport fails or accepts no data, the unsent part of the current write
+ * is kept for the next flush and the rest of the commands are dropped. After a failure a partially taken line
+ * is kept from its beginning.
+ */
+public class Batch implements WritableByteChannel, Flushable {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final WritableByteChannel target;
+    private final int maxBatchSize;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private boolean open = true;
+    private long droppedBytes;
+    private boolean dropping;
+
+    public Batch(WritableByteChannel target, int maxBatchSize) {
+        this.target = target;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new IOException("Batch is closed");
+        }
+        final int length = src.remaining();
+        ensureCapacity(length);
+        buffer.put(src);
+        return length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (buffer.remaining() < length) {
+            int capacity = buffer.capacity();
+            while (capacity - buffer.position() < length) {
+                capacity <<= 1;
+            }
+            ByteBuffer extended = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            extended.put(buffer);
+            buffer = extended;
+        }
+    }
+
+    /**
+     * @return number of bytes waiting for {@link #flush()}
+     */
+    public synchronized int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Writes collected commands to the transport.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        final byte[] array = buffer.array();
+        final int limit = buffer.limit();
+        int end = 0;
+        ByteBuffer chunk = null;
+        boolean failed = true;
+        try {
+            int start = 0;
+            while (start < limit) {
+                end = chunkEnd(array, start, limit);
+                chunk = ByteBuffer.wrap(array, start, end - start);
+                while (chunk.hasRemaining()) {
+                    final int position = chunk.position();
+                    target.write(chunk);
+                    if (chunk.position() == position) {
+                        break;
+                    }
+                }
+                start = chunk.position();
+                if (start < end) {
+                    // the transport is busy or drops commands, such as UDP with an open circuit breaker
+                    break;
+                }
+            }
+            failed = false;
+        } finally {
+            int start = chunk == null ? 0 : chunk.position();
+            if (failed) {
+                // a stream transport may have taken part of a line it never sent, the line is sent again as a whole
+                start = lineStart(array, start);
+            }
+            retain(start, end, limit);
+        }
+    }
+
+    private static int lineStart(byte[] array, int position) {
+        while (position > 0 && array[position - 1] != '\n') {
+            position--;
+        }
+        return position;
+    }
+
+    /**
+     * Moves the unsent part of the current write to the beginning of the buffer and drops the rest.
+     */
+    private void retain(int start, int end, int limit) {
+        final int dropped = limit - end;
+        if (dropped > 0) {
+            droppedBytes += dropped;
+            if (!dropping) {
+                dropping = true;
+                AtsdUtil.logError("Transport did not accept commands, " + dropped + " bytes are dropped");
+            }
+        } else if (start == end) {
+            dropping = false;
+        }
+        buffer.limit(end).position(start);
+        if (buffer.capacity() > Math.max(maxBatchSize, INITIAL_BUFFER_SIZE)) {
+            ByteBuffer shrunk = ByteBuffer.allocate(Math.max(INITIAL_BUFFER_SIZE, end - start));
+            shrunk.put(buffer);
+            buffer = shrunk;
+        } else {
+            buffer.compact();
+        }
+    }
+
+    private int chunkEnd(byte[] array, int start, int limit) {
+        if (limit - start <= maxBatchSize) {
+            return limit;
+        }
+        for (int i = start + maxBatchSize - 1; i >= start; i--) {
+            if (array[i] == '\n') {
+                return i + 1;
+            }
+        }
+        // a single line longer than the maximum size
+        for (int i = start + maxBatchSize; i < limit; i++) {
+            if (array[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Flushes collected commands, the transport is not closed. Commands which could not be sent are dropped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (open) {
+            open = false;
+            try {
+                flush();
+            } finally {
+                droppedBytes += buffer.position();
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes dropped because the transport did not accept them
+     */
+    public synchronized long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public WritableByteChannel getTarget() {
+        return target;
+    }
+}
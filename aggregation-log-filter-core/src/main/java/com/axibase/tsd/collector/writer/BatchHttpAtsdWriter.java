@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * HTTP/HTTPS writer which sends each written buffer as one request body, so a {@link Batch} in front of it
+ * sends a flush cycle in as few requests as possible. The buffer is consumed only when ATSD accepts the request,
+ * otherwise it is left to the caller to send again.
+ * Connections are not disconnected, so the JDK keep-alive cache reuses them between batches.
+ * Bodies of at least {@link #setGzipMinSize(int) gzipMinSize} bytes are sent with gzip content encoding.
+ */
+public class BatchHttpAtsdWriter extends BaseHttpAtsdWriter implements Flushable {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    // magic, deflate method, no flags, no modification time, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private final byte[] drainBuffer = new byte[512];
+    private SSLSocketFactory sslSocketFactory;
+    // body of a written buffer without an accessible array
+    private byte[] copyBuffer;
+    private int statusCode = -1;
+    private boolean open = true;
+    private int gzipMinSize = -1;
+    private Deflater deflater;
+    private CRC32 crc;
+    private byte[] gzipBuffer;
+
+    public BatchHttpAtsdWriter(URI uri, String ignoreSslErrors) {
+        super(uri);
+        if ("https".equalsIgnoreCase(uri.getScheme())) {
+            AtsdUtil.logInfo("Ignore SSL Errors: " + ignoreSslErrors);
+            if (StringUtils.equalsIgnoreCase(ignoreSslErrors, "true")) {
+                try {
+                    sslSocketFactory = createTrustAllContext().getSocketFactory();
+                } catch (KeyManagementException | NoSuchAlgorithmException e) {
+                    AtsdUtil.logError("Cannot create SSL context.");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param gzipMinSize minimum body size in bytes to compress, compression is disabled if negative
+     */
+    public synchronized void setGzipMinSize(int gzipMinSize) {
+        this.gzipMinSize = gzipMinSize;
+        if (gzipMinSize >= 0 && deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            crc = new CRC32();
+            gzipBuffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new IOException("Writer is closed");
+        }
+        final int length = src.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        final byte[] body;
+        final int offset;
+        if (src.hasArray()) {
+            body = src.array();
+            offset = src.arrayOffset() + src.position();
+        } else {
+            if (copyBuffer == null || copyBuffer.length < length) {
+                copyBuffer = new byte[Math.max(INITIAL_BUFFER_SIZE, length)];
+            }
+            src.duplicate().get(copyBuffer, 0, length);
+            body = copyBuffer;
+            offset = 0;
+        }
+        if (gzipMinSize >= 0 && length >= gzipMinSize) {
+            send(gzipBuffer, 0, gzip(body, offset, length), true);
+        } else {
+            send(body, offset, length, false);
+        }
+        src.position(src.limit());
+        return length;
+    }
+
+    /**
+     * Does nothing, written commands are already sent.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Compresses the body into {@link #gzipBuffer}, the deflater is reused between requests.
+     *
+     * @return compressed size
+     */
+    private int gzip(byte[] body, int offset, int length) {
+        deflater.reset();
+        deflater.setInput(body, offset, length);
+        deflater.finish();
+        System.arraycopy(GZIP_HEADER, 0, gzipBuffer, 0, GZIP_HEADER.length);
+        int size = GZIP_HEADER.length;
+        while (!deflater.finished()) {
+            if (size == gzipBuffer.length) {
+                gzipBuffer = Arrays.copyOf(gzipBuffer, gzipBuffer.length << 1);
+            }
+            size += deflater.deflate(gzipBuffer, size, gzipBuffer.length - size);
+        }
+        if (gzipBuffer.length - size < GZIP_TRAILER_SIZE) {
+            gzipBuffer = Arrays.copyOf(gzipBuffer, size + GZIP_TRAILER_SIZE);
+        }
+        crc.reset();
+        crc.update(body, offset, length);
+        size = putIntLE(gzipBuffer, size, (int) crc.getValue());
+        size = putIntLE(gzipBuffer, size, length);
+        return size;
+    }
+
+    private static int putIntLE(byte[] array, int offset, int value) {
+        array[offset] = (byte) value;
+        array[offset + 1] = (byte) (value >>> 8);
+        array[offset + 2] = (byte) (value >>> 16);
+        array[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+
+    private void send(byte[] body, int offset, int length, boolean gzip) throws IOException {
+        circuitBreaker.check();
+        try {
+            sendRequest(body, offset, length, gzip);
+        } catch (IOException e) {
+            circuitBreaker.failure(e);
+            throw e;
+        }
+        circuitBreaker.success();
+    }
+
+    private void sendRequest(byte[] body, int offset, int length, boolean gzip) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        if (sslSocketFactory != null && connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+            ((HttpsURLConnection) connection).setHostnameVerifier(ALL_HOSTS_VALID);
+        }
+        initConnection(connection);
+        if (gzip) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        connection.setUseCaches(false);
+        connection.setFixedLengthStreamingMode(length);
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(body, offset, length);
+        }
+        statusCode = connection.getResponseCode();
+        // the response has to be consumed to return the connection to the keep-alive cache
+        drain(statusCode < HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getInputStream() : connection.getErrorStream());
+        if (statusCode != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Illegal response code: " + statusCode);
+        }
+    }
+
+    private void drain(InputStream inputStream) {
+        if (inputStream == null) {
+            return;
+        }
+        try {
+            while (inputStream.read(drainBuffer) >= 0) {
+                // skip response body
+            }
+            inputStream.close();
+        } catch (IOException e) {
+            AtsdUtil.logInfo("Could not read response. " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (open) {
+            open = false;
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * @return response code of the last request
+     */
+    @Override
+    public synchronized int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+import com.axibase.tsd.collector.CachedClock;
+import com.axibase.tsd.collector.Clock;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Connection state of a writer. A failure opens the breaker and requests fail fast until the backoff delay expires,
+ * then one attempt is let through (half-open) and other requests still fail fast. A successful attempt closes the breaker,
+ * a failed one opens it again
+ * with a doubled delay. The delay is randomized by up to a half, so that many clients do not reconnect at once.
+ * Only state transitions are logged.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final long DEFAULT_MIN_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 60000;
+
+    private final String name;
+    private Clock clock = CachedClock.INSTANCE;
+    private long minDelayMs = DEFAULT_MIN_DELAY_MS;
+    private long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private State state = State.CLOSED;
+    private long delayMs;
+    private long retryTime;
+    // time after which a trial request without an outcome is given up and another one is allowed
+    private long trialDeadline;
+    private int consecutiveFailures;
+    private long openCount;
+    private long rejectedCount;
+
+    /**
+     * @param name used in log messages, for example "TCP writer to localhost:8081"
+     */
+    public CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    public synchronized void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public synchronized void setDelays(long minDelayMs, long maxDelayMs) {
+        if (minDelayMs <= 0 || maxDelayMs < minDelayMs) {
+            throw new IllegalArgumentException("Illegal backoff delays: " + minDelayMs + ", " + maxDelayMs);
+        }
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * @return false if the breaker is open and the backoff delay has not expired yet,
+     * or if a trial request is already in progress
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        final long now = clock.currentTimeMillis();
+        if (state == State.OPEN ? now < retryTime : now < trialDeadline) {
+            rejectedCount++;
+            return false;
+        }
+        state = State.HALF_OPEN;
+        trialDeadline = now + maxDelayMs;
+        return true;
+    }
+
+    /**
+     * @throws IOException if the breaker is open and the backoff delay has not expired yet
+     */
+    public void check() throws IOException {
+        if (!allowRequest()) {
+            throw new IOException(getState() == State.HALF_OPEN ? name + " is unavailable, next attempt in progress"
+                    : name + " is unavailable, next attempt in " + getRetryDelayMs() + " ms");
+        }
+    }
+
+    public synchronized void success() {
+        if (state != State.CLOSED) {
+            AtsdUtil.logInfo(name + " is available after " + consecutiveFailures + " failed attempts");
+            state = State.CLOSED;
+        }
+        consecutiveFailures = 0;
+        delayMs = 0;
+    }
+
+    public synchronized void failure(Throwable cause) {
+        consecutiveFailures++;
+        delayMs = delayMs == 0 ? minDelayMs : Math.min(maxDelayMs, delayMs * 2);
+        final long half = delayMs / 2;
+        retryTime = clock.currentTimeMillis() + delayMs - half + ThreadLocalRandom.current().nextLong(half + 1);
+        if (state == State.CLOSED) {
+            openCount++;
+            AtsdUtil.logError(name + " is unavailable, retrying with backoff. " + cause.getMessage());
+        }
+        state = State.OPEN;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return milliseconds until the next attempt is allowed, 0 if the breaker is not open
+     */
+    public synchronized long getRetryDelayMs() {
+        return state == State.OPEN ? Math.max(0, retryTime - clock.currentTimeMillis()) : 0;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return number of times the breaker has opened
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * @return number of requests rejected without touching the network
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" +
+                "name='" + name + '\'' +
+                ", state=" + state +
+                ", consecutiveFailures=" + consecutiveFailures +
+                ", openCount=" + openCount +
+                ", rejectedCount=" + rejectedCount +
+                '}';
+    }
+}
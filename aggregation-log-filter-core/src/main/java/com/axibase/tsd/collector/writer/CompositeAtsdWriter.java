@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writer which spreads writes across several endpoints with smooth weighted round-robin.
+ * Every write is delivered completely to one endpoint. If the endpoint fails, the same write is sent
+ * to the next available endpoint. Failed endpoints are skipped until a background probe with
+ * a {@code ping} command succeeds.
+ */
+public class CompositeAtsdWriter implements WritableByteChannel {
+    private static final byte[] PING = "ping\n".getBytes(AtsdUtil.UTF_8);
+    private static final long PROBE_INTERVAL_MS = 1000;
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final Thread prober;
+    private long failoverCount;
+    private volatile boolean open = true;
+
+    /**
+     * @param writers endpoint writers
+     * @param weights relative share of writes for each endpoint, null for equal shares
+     */
+    public CompositeAtsdWriter(List<? extends WritableByteChannel> writers, int[] weights) {
+        if (writers.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        if (weights != null && weights.length != writers.size()) {
+            throw new IllegalArgumentException("Expected " + writers.size() + " weights, found " + weights.length);
+        }
+        for (int i = 0; i < writers.size(); i++) {
+            final int weight = weights == null ? 1 : weights[i];
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Endpoint weight must be positive, currently " + weight);
+            }
+            endpoints.add(new Endpoint(i, writers.get(i), weight));
+        }
+        prober = AtsdUtil.DAEMON_THREAD_FACTORY.newThread(new Runnable() {
+            @Override
+            public void run() {
+                probeLoop();
+            }
+        });
+        prober.setName("aggregation-log-filter-probe");
+        prober.start();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new IOException("Writer is closed");
+        }
+        final int start = src.position();
+        final boolean[] tried = new boolean[endpoints.size()];
+        IOException failure = null;
+        Endpoint endpoint;
+        while ((endpoint = select(tried)) != null) {
+            tried[endpoint.index] = true;
+            src.position(start);
+            try {
+                endpoint.send(src);
+                return src.position() - start;
+            } catch (IOException e) {
+                failure = e;
+                synchronized (this) {
+                    failoverCount++;
+                }
+            }
+        }
+        src.position(start);
+        throw new IOException("Could not send commands to any of " + endpoints.size() + " endpoints", failure);
+    }
+
+    /**
+     * Selects the endpoint with the largest current weight among untried closed endpoints,
+     * or an untried endpoint due for a retry if no endpoint is closed.
+     */
+    private synchronized Endpoint select(boolean[] tried) {
+        Endpoint best = null;
+        int total = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (!tried[endpoint.index] && endpoint.breaker.getState() == CircuitBreaker.State.CLOSED) {
+                endpoint.currentWeight += endpoint.weight;
+                total += endpoint.weight;
+                if (best == null || endpoint.currentWeight > best.currentWeight) {
+                    best = endpoint;
+                }
+            }
+        }
+        if (best != null) {
+            best.currentWeight -= total;
+            return best;
+        }
+        for (Endpoint endpoint : endpoints) {
+            if (!tried[endpoint.index] && endpoint.breaker.getRetryDelayMs() == 0) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private void probeLoop() {
+        while (open) {
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.breaker.getState() == CircuitBreaker.State.OPEN && endpoint.breaker.getRetryDelayMs() == 0) {
+                    endpoint.probe();
+                }
+            }
+            try {
+                Thread.sleep(PROBE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public int getEndpointCount() {
+        return endpoints.size();
+    }
+
+    public CircuitBreaker getCircuitBreaker(int index) {
+        return endpoints.get(index).breaker;
+    }
+
+    /**
+     * @return number of writes sent again to another endpoint after a failure
+     */
+    public synchronized long getFailoverCount() {
+        return failoverCount;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        prober.interrupt();
+        try {
+            prober.join(PROBE_INTERVAL_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Endpoint endpoint : endpoints) {
+            endpoint.close();
+        }
+    }
+
+    private static final class Endpoint {
+        private final int index;
+        private final WritableByteChannel writer;
+        private final int weight;
+        private final CircuitBreaker breaker;
+        // the writer does not record its own failures
+        private final boolean ownBreaker;
+        // guarded by the composite writer
+        private int currentWeight;
+
+        Endpoint(int index, WritableByteChannel writer, int weight) {
+            this.index = index;
+            this.writer = writer;
+            this.weight = weight;
+            if (writer instanceof AbstractAtsdWriter) {
+                breaker = ((AbstractAtsdWriter) writer).getCircuitBreaker();
+                ownBreaker = false;
+            } else if (writer instanceof BaseHttpAtsdWriter) {
+                breaker = ((BaseHttpAtsdWriter) writer).getCircuitBreaker();
+                ownBreaker = false;
+            } else {
+                breaker = new CircuitBreaker("Endpoint " + index);
+                ownBreaker = true;
+            }
+        }
+
+        synchronized void send(ByteBuffer src) throws IOException {
+            if (ownBreaker) {
+                breaker.check();
+            }
+            try {
+                while (src.hasRemaining()) {
+                    final int position = src.position();
+                    writer.write(src);
+                    if (src.position() == position) {
+                        throw new IOException("Endpoint " + index + " did not accept " + src.remaining() + " bytes");
+                    }
+                }
+                // responses of a non-batched HTTP(S) writer are checked when the request is closed
+                if (writer instanceof Flushable) {
+                    ((Flushable) writer).flush();
+                } else if (writer instanceof BaseHttpAtsdWriter) {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                if (ownBreaker) {
+                    breaker.failure(e);
+                }
+                throw e;
+            }
+            if (ownBreaker) {
+                breaker.success();
+            }
+        }
+
+        synchronized void probe() {
+            try {
+                send(ByteBuffer.wrap(PING));
+            } catch (IOException e) {
+                // the breaker stays open with a longer delay
+            }
+        }
+
+        synchronized void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                AtsdUtil.logInfo("Could not close writer. " + e.getMessage());
+            }
+        }
+    }
+}
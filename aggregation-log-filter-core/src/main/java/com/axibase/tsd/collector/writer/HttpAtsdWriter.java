@@ -34,11 +34,17 @@ public class HttpAtsdWriter extends BaseHttpAtsdWriter {
     @Override
     public int write(ByteBuffer src) throws IOException {
         close();
+        circuitBreaker.check();
         init();
         if (outputStream == null) {
             throw new IOException("outputStream has not been initialized properly");
         }
-        return writeBuffer(outputStream, src);
+        try {
+            return writeBuffer(outputStream, src);
+        } catch (IOException e) {
+            circuitBreaker.failure(e);
+            throw e;
+        }
     }
 
     private void init() throws IOException {
@@ -51,7 +57,7 @@ public class HttpAtsdWriter extends BaseHttpAtsdWriter {
             connection.setUseCaches(false);
             outputStream = connection.getOutputStream();
         } catch (IOException e) {
-            AtsdUtil.logError("Could not init HTTP writer", e);
+            circuitBreaker.failure(e);
             close();
         }
     }
@@ -64,7 +70,14 @@ public class HttpAtsdWriter extends BaseHttpAtsdWriter {
     @Override
     public void close() throws IOException {
         if (outputStream != null) {
-            outputStream.flush();
+            try {
+                outputStream.flush();
+            } catch (IOException e) {
+                outputStream = null;
+                connection = null;
+                circuitBreaker.failure(e);
+                throw e;
+            }
             try {
                 outputStream.close();
             } catch (IOException e) {
@@ -73,10 +86,21 @@ public class HttpAtsdWriter extends BaseHttpAtsdWriter {
             outputStream = null;
         }
         if (connection != null) {
-            int code = connection.getResponseCode();
+            final int code;
+            try {
+                code = connection.getResponseCode();
+            } catch (IOException e) {
+                connection = null;
+                circuitBreaker.failure(e);
+                throw e;
+            }
             if (code != HttpURLConnection.HTTP_OK) {
-                throw new IOException("Illegal response code: " + code);
+                connection = null;
+                IOException e = new IOException("Illegal response code: " + code);
+                circuitBreaker.failure(e);
+                throw e;
             }
+            circuitBreaker.success();
             try {
                 connection.disconnect();
             } catch (Exception e) {
@@ -18,15 +18,13 @@ package com.axibase.tsd.collector.writer;
 import com.axibase.tsd.collector.AtsdUtil;
 import org.apache.commons.lang3.StringUtils;
 
-import javax.net.ssl.*;
+import javax.net.ssl.HttpsURLConnection;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
 
 public class HttpsAtsdWriter extends BaseHttpAtsdWriter {
 
@@ -44,11 +42,17 @@ public class HttpsAtsdWriter extends BaseHttpAtsdWriter {
     @Override
     public int write(ByteBuffer src) throws IOException {
         close();
+        circuitBreaker.check();
         init();
         if (outputStream == null) {
             throw new IOException("outputStream has not been initialized properly");
         }
-        return writeBuffer(outputStream, src);
+        try {
+            return writeBuffer(outputStream, src);
+        } catch (IOException e) {
+            circuitBreaker.failure(e);
+            throw e;
+        }
     }
 
     private void init() throws IOException {
@@ -64,7 +68,7 @@ public class HttpsAtsdWriter extends BaseHttpAtsdWriter {
             connection.setUseCaches(false);
             outputStream = connection.getOutputStream();
         } catch (IOException e) {
-            AtsdUtil.logError("Could not init HTTPS writer", e);
+            circuitBreaker.failure(e);
             close();
         }
     }
@@ -77,7 +81,14 @@ public class HttpsAtsdWriter extends BaseHttpAtsdWriter {
     @Override
     public void close() throws IOException {
         if (outputStream != null) {
-            outputStream.flush();
+            try {
+                outputStream.flush();
+            } catch (IOException e) {
+                outputStream = null;
+                connection = null;
+                circuitBreaker.failure(e);
+                throw e;
+            }
             try {
                 outputStream.close();
             } catch (IOException e) {
@@ -86,10 +97,21 @@ public class HttpsAtsdWriter extends BaseHttpAtsdWriter {
             outputStream = null;
         }
         if (connection != null) {
-            int code = connection.getResponseCode();
+            final int code;
+            try {
+                code = connection.getResponseCode();
+            } catch (IOException e) {
+                connection = null;
+                circuitBreaker.failure(e);
+                throw e;
+            }
             if (code != HttpsURLConnection.HTTP_OK) {
-                throw new IOException("Illegal response code: " + code);
+                connection = null;
+                IOException e = new IOException("Illegal response code: " + code);
+                circuitBreaker.failure(e);
+                throw e;
             }
+            circuitBreaker.success();
             try {
                 connection.disconnect();
             } catch (Exception e) {
@@ -110,33 +132,9 @@ public class HttpsAtsdWriter extends BaseHttpAtsdWriter {
     }
 
     private void disableSSLCertificateChecks() {
-
-        TrustManager[] trustAllCerts = {new X509TrustManager() {
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
-            }
-
-            @Override
-            public void checkClientTrusted(X509Certificate[] arg0, String arg1) {
-            }
-
-            @Override
-            public void checkServerTrusted(X509Certificate[] arg0, String arg1) {
-            }
-        }};
-
         try {
-            SSLContext context = SSLContext.getInstance("SSL");
-            context.init(null, trustAllCerts, new SecureRandom());
-            HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
-
-            HostnameVerifier allHostsValid = new HostnameVerifier() {
-                @Override
-                public boolean verify(String hostname, SSLSession session) {
-                    return true;
-                }
-            };
-            HttpsURLConnection.setDefaultHostnameVerifier(allHostsValid);
+            HttpsURLConnection.setDefaultSSLSocketFactory(createTrustAllContext().getSocketFactory());
+            HttpsURLConnection.setDefaultHostnameVerifier(ALL_HOSTS_VALID);
         } catch (KeyManagementException | NoSuchAlgorithmException e) {
             AtsdUtil.logError("Cannot create SSL context.");
         }
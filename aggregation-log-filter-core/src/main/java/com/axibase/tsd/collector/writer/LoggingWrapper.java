@@ -17,12 +17,13 @@ package com.axibase.tsd.collector.writer;
 
 import com.axibase.tsd.collector.AtsdUtil;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 
-public class LoggingWrapper implements WritableByteChannel {
+public class LoggingWrapper implements WritableByteChannel, Flushable {
     private final WritableByteChannel wrapped;
 
     public LoggingWrapper(WritableByteChannel wrapped) {
@@ -53,6 +54,13 @@ public class LoggingWrapper implements WritableByteChannel {
         wrapped.close();
     }
 
+    @Override
+    public void flush() throws IOException {
+        if (wrapped instanceof Flushable) {
+            ((Flushable) wrapped).flush();
+        }
+    }
+
     public static WritableByteChannel tryWrap(String debug, WritableByteChannel writer) {
         if (debug != null && ("1".equals(debug) || "true".equalsIgnoreCase(debug))) {
             return new LoggingWrapper(writer);
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+import com.axibase.tsd.collector.CachedClock;
+import com.axibase.tsd.collector.Clock;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A non-blocking client to a ATSD server via TCP.
+ * Written commands are put on a send queue limited in bytes and sent by a selector thread with gathering writes.
+ * While the queue is full written commands are dropped, so a slow or unavailable server never blocks the caller.
+ * Reconnects are delayed by the {@link CircuitBreaker} backoff.
+ */
+public class NioTcpAtsdWriter extends AbstractAtsdWriter {
+    private static final int MAX_GATHERED_BUFFERS = 64;
+    private static final int MAX_SPARE_BUFFERS = 4;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final int queueCapacity;
+    // guarded by queue
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    // sent buffers reused for later writes
+    private final ArrayDeque<ByteBuffer> spares = new ArrayDeque<>();
+    private long queuedBytes;
+    private long droppedBytes;
+    private long droppedWrites;
+    private boolean dropping;
+
+    private volatile boolean open = true;
+    private volatile Clock clock = CachedClock.INSTANCE;
+    private Selector selector;
+    private Thread ioThread;
+
+    // used by the I/O thread only
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+    private SocketChannel channel;
+    private SelectionKey key;
+
+    public NioTcpAtsdWriter(String host, int port, int queueCapacity) {
+        this(host, port, queueCapacity, 1);
+    }
+
+    /**
+     * @param maxWriteSize maximum size of a single write, such as the maximum batch size
+     */
+    public NioTcpAtsdWriter(String host, int port, int queueCapacity, int maxWriteSize) {
+        super(host, port);
+        if (queueCapacity < maxWriteSize) {
+            throw new IllegalArgumentException("TCP queue size must be at least " + maxWriteSize +
+                    " bytes, currently " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    protected int getDefaultPort() {
+        return 8081;
+    }
+
+    /**
+     * Puts a copy of the buffer on the send queue. The caller reuses its buffer as soon as the write returns,
+     * such as {@link Batch} after a flush, so the queue owns its bytes. A write is one copy of a whole batch,
+     * into a buffer reused from earlier writes when possible.
+     *
+     * @return number of queued bytes, 0 if the queue is full and the buffer is dropped
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        final int length = src.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        synchronized (queue) {
+            if (queuedBytes + length > queueCapacity) {
+                droppedBytes += length;
+                droppedWrites++;
+                if (!dropping) {
+                    dropping = true;
+                    AtsdUtil.logError("TCP send queue is full, commands are dropped");
+                }
+                return 0;
+            }
+            ByteBuffer copy = spare(length);
+            copy.put(src).flip();
+            queue.addLast(copy);
+            queuedBytes += length;
+        }
+        startIoThread().wakeup();
+        return length;
+    }
+
+    // guarded by queue
+    private ByteBuffer spare(int length) {
+        for (Iterator<ByteBuffer> iterator = spares.iterator(); iterator.hasNext(); ) {
+            ByteBuffer buffer = iterator.next();
+            if (buffer.capacity() >= length) {
+                iterator.remove();
+                buffer.clear().limit(length);
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocate(length);
+    }
+
+    private synchronized Selector startIoThread() throws IOException {
+        if (ioThread == null) {
+            selector = Selector.open();
+            ioThread = AtsdUtil.DAEMON_THREAD_FACTORY.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    runIoLoop();
+                }
+            });
+            ioThread.setName("aggregation-log-filter-tcp");
+            ioThread.start();
+        }
+        return selector;
+    }
+
+    private void runIoLoop() {
+        long closeDeadline = Long.MAX_VALUE;
+        try {
+            while (true) {
+                long now = clock.currentTimeMillis();
+                if (!open) {
+                    closeDeadline = Math.min(closeDeadline, now + CLOSE_TIMEOUT_MS);
+                    if (getQueuedBytes() == 0 || now >= closeDeadline) {
+                        break;
+                    }
+                }
+                if (channel == null && circuitBreaker.getRetryDelayMs() == 0 && circuitBreaker.allowRequest()) {
+                    connect();
+                }
+                long timeout = channel == null ? Math.max(1, circuitBreaker.getRetryDelayMs()) : SELECT_TIMEOUT_MS;
+                selector.select(Math.min(timeout, SELECT_TIMEOUT_MS));
+                selector.selectedKeys().clear();
+                if (channel != null) {
+                    try {
+                        if (channel.isConnectionPending() && channel.finishConnect()) {
+                            onConnected();
+                        }
+                        if (channel.isConnected()) {
+                            boolean pending = writeQueued();
+                            key.interestOps(pending ? SelectionKey.OP_WRITE : 0);
+                        }
+                    } catch (IOException e) {
+                        onFailure(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            AtsdUtil.logError("TCP writer stopped", e);
+        } finally {
+            closeChannel();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                AtsdUtil.logInfo("Could not close selector. " + e.getMessage());
+            }
+            long unsent = getQueuedBytes();
+            if (unsent > 0) {
+                AtsdUtil.logError("TCP writer closed with " + unsent + " unsent bytes");
+            }
+        }
+    }
+
+    private void connect() {
+        try {
+            InetSocketAddress address = getAddress();
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(address.getHostName());
+            }
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                key = channel.register(selector, 0);
+                onConnected();
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            onFailure(e);
+        }
+    }
+
+    private void onConnected() {
+        key.interestOps(0);
+        circuitBreaker.success();
+    }
+
+    private void onFailure(IOException e) {
+        circuitBreaker.failure(e);
+        closeChannel();
+        synchronized (queue) {
+            // a partially sent command is sent again from its beginning, the commands before it are not repeated
+            ByteBuffer head = queue.peekFirst();
+            if (head != null) {
+                int start = head.position();
+                while (start > 0 && head.get(start - 1) != '\n') {
+                    start--;
+                }
+                queuedBytes += head.position() - start;
+                head.position(start);
+            }
+        }
+    }
+
+    /**
+     * @return true if the socket buffer is full and queued commands remain
+     */
+    private boolean writeQueued() throws IOException {
+        while (true) {
+            int count = 0;
+            synchronized (queue) {
+                for (ByteBuffer buffer : queue) {
+                    if (count == gathered.length) {
+                        break;
+                    }
+                    gathered[count++] = buffer;
+                }
+            }
+            if (count == 0) {
+                return false;
+            }
+            long written;
+            try {
+                written = channel.write(gathered, 0, count);
+            } finally {
+                Arrays.fill(gathered, 0, count, null);
+            }
+            synchronized (queue) {
+                queuedBytes -= written;
+                while (!queue.isEmpty() && !queue.peekFirst().hasRemaining()) {
+                    ByteBuffer sent = queue.pollFirst();
+                    if (spares.size() == MAX_SPARE_BUFFERS) {
+                        spares.pollFirst();
+                    }
+                    spares.addLast(sent);
+                }
+                if (dropping && queuedBytes <= queueCapacity / 2) {
+                    dropping = false;
+                    AtsdUtil.logInfo("TCP send queue is available, " + droppedWrites + " writes dropped");
+                }
+                if (queue.isEmpty()) {
+                    return false;
+                }
+            }
+            if (written == 0) {
+                return true;
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                AtsdUtil.logInfo("Could not close TCP channel. " + e.getMessage());
+            }
+            channel = null;
+            key = null;
+        }
+    }
+
+    public long getQueuedBytes() {
+        synchronized (queue) {
+            return queuedBytes;
+        }
+    }
+
+    public long getDroppedBytes() {
+        synchronized (queue) {
+            return droppedBytes;
+        }
+    }
+
+    public long getDroppedWrites() {
+        synchronized (queue) {
+            return droppedWrites;
+        }
+    }
+
+    /**
+     * @return true from the moment the queue overflows until it is half empty
+     */
+    public boolean isDropping() {
+        synchronized (queue) {
+            return dropping;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Waits up to 5 seconds for queued commands to be sent.
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        Thread thread;
+        synchronized (this) {
+            thread = ioThread;
+        }
+        if (thread != null) {
+            selector.wakeup();
+            try {
+                thread.join(CLOSE_TIMEOUT_MS + SELECT_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+import com.axibase.tsd.collector.CachedClock;
+import com.axibase.tsd.collector.Clock;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writer which appends commands to memory-mapped segment files in the spool directory and sends them
+ * to the target writer on {@link #flush()}. Commands are removed from the spool only after the target
+ * accepted them, so commands written while ATSD is unavailable are sent in order once it is available again.
+ * Commands spooled before the current flush cycle are replayed at most at the replay rate.
+ * When the spool reaches its maximum size the oldest segment is dropped.
+ * Segment files remain in the directory on close and are replayed after a restart.
+ */
+public class SpoolingAtsdWriter implements WritableByteChannel, Flushable {
+    static final int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    // read and write positions of the segment
+    private static final int HEADER_SIZE = 8;
+    private static final int READ_POSITION_OFFSET = 0;
+    private static final int WRITE_POSITION_OFFSET = 4;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("spool-(\\d+)\\.dat");
+
+    private final WritableByteChannel target;
+    private final File directory;
+    private final long maxSize;
+    private final int segmentSize;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private Clock clock = CachedClock.INSTANCE;
+    private long replayRate = Long.MAX_VALUE;
+    private int maxChunkSize = MAX_SEGMENT_SIZE;
+    private long lastFlush;
+    private long appended;
+    private long droppedBytes;
+    private boolean available = true;
+    private boolean dropping;
+    private boolean open = true;
+
+    public SpoolingAtsdWriter(WritableByteChannel target, File directory, long maxSize) throws IOException {
+        this(target, directory, maxSize, (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxSize / 4)));
+    }
+
+    SpoolingAtsdWriter(WritableByteChannel target, File directory, long maxSize, int segmentSize) throws IOException {
+        if (maxSize < 2L * segmentSize) {
+            throw new IllegalArgumentException("Spool size must be at least " + 2L * segmentSize +
+                    " bytes, currently " + maxSize);
+        }
+        this.target = target;
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+        recover();
+        lastFlush = clock.currentTimeMillis();
+    }
+
+    private void recover() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    ids.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        Collections.sort(ids);
+        long spooled = 0;
+        for (Long id : ids) {
+            Segment segment = Segment.open(segmentFile(id), id, 0);
+            if (segment.isEmpty()) {
+                segment.delete();
+            } else {
+                segments.addLast(segment);
+                spooled += segment.remaining();
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.addLast(Segment.open(segmentFile(0), 0, segmentSize));
+        } else {
+            AtsdUtil.logInfo("Found " + spooled + " spooled bytes in " + directory);
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("spool-%020d.dat", id));
+    }
+
+    /**
+     * @param replayRate maximum number of spooled bytes per second sent in addition to the current cycle
+     */
+    public synchronized void setReplayRate(long replayRate) {
+        if (replayRate <= 0) {
+            throw new IllegalArgumentException("Replay rate must be positive, currently " + replayRate);
+        }
+        this.replayRate = replayRate;
+    }
+
+    /**
+     * @param maxChunkSize maximum number of bytes passed to the target writer in one write
+     */
+    public synchronized void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public synchronized void setClock(Clock clock) {
+        this.clock = clock;
+        lastFlush = clock.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new IOException("Spool is closed");
+        }
+        final int length = src.remaining();
+        while (src.hasRemaining()) {
+            Segment segment = segments.getLast();
+            int part = Math.min(src.remaining(), segment.space());
+            if (part < src.remaining()) {
+                part = lastLineEnd(src, part);
+            }
+            if (part > 0) {
+                segment.append(src, part);
+            } else if (segment.isEmpty() && segment.isUsed()) {
+                segment.reset();
+            } else if (segment.isUsed()) {
+                rotate();
+            } else {
+                int skipped = skipLine(src);
+                droppedBytes += skipped;
+                AtsdUtil.logInfo("Spool skipped a command longer than " + segment.space() + " bytes");
+            }
+        }
+        appended += length;
+        return length;
+    }
+
+    private static int lastLineEnd(ByteBuffer src, int length) {
+        final int start = src.position();
+        for (int i = start + length - 1; i >= start; i--) {
+            if (src.get(i) == '\n') {
+                return i + 1 - start;
+            }
+        }
+        return 0;
+    }
+
+    private static int skipLine(ByteBuffer src) {
+        final int start = src.position();
+        int end = start;
+        while (end < src.limit() && src.get(end++) != '\n') {
+            // skip to the end of the command
+        }
+        src.position(end);
+        return end - start;
+    }
+
+    private void rotate() throws IOException {
+        while ((segments.size() + 1L) * segmentSize > maxSize) {
+            Segment oldest = segments.removeFirst();
+            droppedBytes += oldest.remaining();
+            oldest.delete();
+            if (!dropping) {
+                dropping = true;
+                AtsdUtil.logError("Spool " + directory + " is full, oldest commands are dropped");
+            }
+        }
+        long id = segments.getLast().id + 1;
+        segments.addLast(Segment.open(segmentFile(id), id, segmentSize));
+    }
+
+    /**
+     * Sends commands written since the last flush and spooled commands within the replay rate.
+     * Transport errors are not thrown, the commands stay in the spool.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        final long now = clock.currentTimeMillis();
+        final long elapsed = Math.max(0, now - lastFlush);
+        long budget = replayRate == Long.MAX_VALUE || elapsed > 0 && replayRate >= Long.MAX_VALUE / elapsed ?
+                Long.MAX_VALUE : appended + replayRate * elapsed / 1000;
+        lastFlush = now;
+        appended = 0;
+        boolean sent = false;
+        while (budget > 0) {
+            Segment segment = segments.getFirst();
+            if (segment.isEmpty()) {
+                if (segment == segments.getLast()) {
+                    segment.reset();
+                    break;
+                }
+                segments.removeFirst().delete();
+                continue;
+            }
+            ByteBuffer chunk = segment.read(chunkLength(segment, (int) Math.min(budget, maxChunkSize)));
+            final int length = chunk.remaining();
+            try {
+                send(chunk);
+            } catch (IOException e) {
+                if (available) {
+                    available = false;
+                    AtsdUtil.logError("Could not send commands, spooling to " + directory, e);
+                }
+                return;
+            }
+            final int accepted = length - chunk.remaining();
+            segment.commit(accepted);
+            budget -= accepted;
+            sent |= accepted > 0;
+            if (accepted < length) {
+                // the target is busy, the rest is sent on the next flush
+                break;
+            }
+        }
+        if (sent && !available) {
+            available = true;
+            dropping = false;
+            AtsdUtil.logInfo("Sending commands resumed, " + getSpooledBytes() + " bytes remain in spool");
+        }
+    }
+
+    private static int chunkLength(Segment segment, int maxLength) {
+        final int remaining = segment.remaining();
+        if (remaining <= maxLength) {
+            return remaining;
+        }
+        final MappedByteBuffer buffer = segment.buffer;
+        final int start = segment.readPosition;
+        for (int i = start + maxLength - 1; i >= start; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1 - start;
+            }
+        }
+        // a single line longer than the maximum length
+        for (int i = start + maxLength; i < segment.writePosition; i++) {
+            if (buffer.get(i) == '\n') {
+                return i + 1 - start;
+            }
+        }
+        return remaining;
+    }
+
+    private void send(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            final int position = chunk.position();
+            target.write(chunk);
+            if (chunk.position() == position) {
+                break;
+            }
+        }
+        if (target instanceof Flushable) {
+            ((Flushable) target).flush();
+        } else if (target instanceof BaseHttpAtsdWriter) {
+            target.close();
+        }
+    }
+
+    /**
+     * @return number of bytes waiting in the spool
+     */
+    public synchronized long getSpooledBytes() {
+        long result = 0;
+        for (Segment segment : segments) {
+            result += segment.remaining();
+        }
+        return result;
+    }
+
+    /**
+     * @return number of bytes dropped because the spool was full or a command was longer than a segment
+     */
+    public synchronized long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public WritableByteChannel getTarget() {
+        return target;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Tries to send spooled commands and closes the target writer. Unsent commands remain in the spool directory.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        replayRate = Long.MAX_VALUE;
+        flush();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        target.close();
+    }
+
+    /**
+     * Releases the mapping without waiting for garbage collection, the buffer must not be used afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            // the mapping is released by the garbage collector
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final long id;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+
+        private Segment(File file, long id, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.id = id;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Maps an existing segment file or creates a new one.
+         *
+         * @param size size of a new segment, an existing file keeps its size
+         */
+        static Segment open(File file, long id, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                final boolean created = channel.size() < HEADER_SIZE;
+                final long length = created ? size : channel.size();
+                Segment segment = new Segment(file, id, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+                if (created) {
+                    segment.reset();
+                } else {
+                    segment.recoverPositions();
+                }
+                return segment;
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Bytes after the write position may remain from before the segment was reused, so they are ignored.
+         */
+        private void recoverPositions() {
+            writePosition = Math.max(HEADER_SIZE, Math.min(buffer.getInt(WRITE_POSITION_OFFSET), buffer.capacity()));
+            readPosition = Math.max(HEADER_SIZE, Math.min(buffer.getInt(READ_POSITION_OFFSET), writePosition));
+            buffer.position(writePosition);
+        }
+
+        int space() {
+            return buffer.capacity() - writePosition;
+        }
+
+        int remaining() {
+            return writePosition - readPosition;
+        }
+
+        boolean isUsed() {
+            return writePosition > HEADER_SIZE;
+        }
+
+        boolean isEmpty() {
+            return readPosition == writePosition;
+        }
+
+        void append(ByteBuffer src, int length) {
+            ByteBuffer part = src.duplicate();
+            part.limit(src.position() + length);
+            buffer.put(part);
+            src.position(part.position());
+            writePosition = buffer.position();
+            buffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+        }
+
+        ByteBuffer read(int length) {
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.limit(readPosition + length);
+            chunk.position(readPosition);
+            return chunk;
+        }
+
+        void commit(int length) {
+            readPosition += length;
+            buffer.putInt(READ_POSITION_OFFSET, readPosition);
+        }
+
+        /**
+         * Reuses a drained segment from the beginning.
+         */
+        void reset() {
+            readPosition = HEADER_SIZE;
+            writePosition = HEADER_SIZE;
+            buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+            buffer.putInt(WRITE_POSITION_OFFSET, HEADER_SIZE);
+            buffer.position(HEADER_SIZE);
+        }
+
+        void close() throws IOException {
+            channel.close();
+            unmap(buffer);
+        }
+
+        void delete() throws IOException {
+            close();
+            if (!file.delete()) {
+                AtsdUtil.logError("Could not delete spool segment " + file);
+            }
+        }
+    }
+}
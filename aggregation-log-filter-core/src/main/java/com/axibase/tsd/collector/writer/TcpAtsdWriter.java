@@ -15,8 +15,6 @@
 
 package com.axibase.tsd.collector.writer;
 
-import com.axibase.tsd.collector.AtsdUtil;
-
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
@@ -44,7 +42,6 @@ public class TcpAtsdWriter extends AbstractAtsdWriter {
     private void connect() throws IllegalStateException, IOException {
         InetSocketAddress address = getAddress();
         if (address.getAddress() == null) {
-            AtsdUtil.logError("Illegal address: " + address);
             throw new UnknownHostException(address.getHostName());
         }
         client = new Socket();
@@ -62,19 +59,21 @@ public class TcpAtsdWriter extends AbstractAtsdWriter {
 
     @Override
     public int write(ByteBuffer message) throws IOException {
+        circuitBreaker.check();
         int cnt = 0;
-        if (!isConnected()) {
-            connect();
-        }
         try {
+            if (!isConnected()) {
+                connect();
+            }
             while (message.hasRemaining()) {
                 cnt += channel.write(message);
             }
         } catch (IOException e) {
-            AtsdUtil.logError("Could not write messages using TCP", e);
+            circuitBreaker.failure(e);
             close();
             throw e;
         }
+        circuitBreaker.success();
         return cnt;
     }
 
@@ -85,9 +84,14 @@ public class TcpAtsdWriter extends AbstractAtsdWriter {
 
     public void close() throws IOException {
         if (client != null) {
-            channel.close();
-            dataOut.close();
+            if (channel != null) {
+                channel.close();
+                dataOut.close();
+            }
             client.close();
+            client = null;
+            channel = null;
+            dataOut = null;
         }
     }
 }
\ No newline at end of file
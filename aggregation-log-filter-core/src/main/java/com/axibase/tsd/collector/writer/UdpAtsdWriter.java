@@ -16,20 +16,36 @@
 package com.axibase.tsd.collector.writer;
 
 import com.axibase.tsd.collector.AtsdUtil;
+import com.axibase.tsd.collector.config.WriterConfig;
 
 import java.io.IOException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.UnresolvedAddressException;
 
 /**
  * A client to a ATSD server via UDP.
+ * Commands are packed into datagrams of at most {@code maxPayloadSize} bytes, a command is never split.
  */
 public class UdpAtsdWriter extends AbstractAtsdWriter {
+    private final int maxPayloadSize;
     private DatagramChannel datagramChannel;
+    private volatile long sentDatagrams;
+    private volatile long oversizeCommands;
+    private volatile long droppedCommands;
 
     public UdpAtsdWriter(String host, int port) {
+        this(host, port, WriterConfig.DEFAULT_UDP_PAYLOAD_SIZE);
+    }
+
+    public UdpAtsdWriter(String host, int port, int maxPayloadSize) {
         super(host, port);
+        if (maxPayloadSize <= 0 || maxPayloadSize > WriterConfig.MAX_UDP_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("UDP payload size must be between 1 and " + WriterConfig.MAX_UDP_PAYLOAD_SIZE +
+                    " bytes, currently " + maxPayloadSize);
+        }
+        this.maxPayloadSize = maxPayloadSize;
     }
 
     @Override
@@ -51,20 +67,106 @@ public class UdpAtsdWriter extends AbstractAtsdWriter {
         return datagramChannel != null && !datagramChannel.socket().isClosed();
     }
 
+    /**
+     * Sends all commands from the buffer, the last datagram is sent at the end of the call.
+     * Commands longer than the payload size are skipped. If sending fails or the circuit breaker is open,
+     * the commands which were not sent remain in the buffer and are counted as dropped.
+     *
+     * @return number of bytes consumed from the buffer, including skipped commands
+     */
     @Override
     public int write(ByteBuffer message) {
-        try {
-            if (!isConnected()) {
-                connect();
+        final int start = message.position();
+        if (circuitBreaker.allowRequest()) {
+            try {
+                if (!isConnected()) {
+                    connect();
+                }
+                sendPacked(message);
+                circuitBreaker.success();
+            } catch (IOException e) {
+                circuitBreaker.failure(e);
+            } catch (UnresolvedAddressException e) {
+                circuitBreaker.failure(new UnknownHostException(getAddress().getHostName()));
+            }
+        }
+        if (message.hasRemaining()) {
+            droppedCommands += countCommands(message);
+        }
+        return message.position() - start;
+    }
+
+    private static int countCommands(ByteBuffer message) {
+        int count = 0;
+        final int limit = message.limit();
+        for (int i = message.position(); i < limit; i++) {
+            if (message.get(i) == '\n') {
+                count++;
+            }
+        }
+        return message.get(limit - 1) == '\n' ? count : count + 1;
+    }
+
+    private void sendPacked(ByteBuffer message) throws IOException {
+        int skipped = 0;
+        int start = message.position();
+        int end = start;
+        int lineStart = start;
+        final int limit = message.limit();
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && message.get(lineEnd++) != '\n') {
+                // find the end of the command
+            }
+            if (lineEnd - lineStart > maxPayloadSize) {
+                send(message, start, end);
+                skipped++;
+                start = end = lineEnd;
+            } else if (lineEnd - start > maxPayloadSize) {
+                send(message, start, end);
+                start = lineStart;
+                end = lineEnd;
+            } else {
+                end = lineEnd;
             }
-            return datagramChannel.send(message, getAddress());
-        } catch (IOException e) {
-            AtsdUtil.logInfo("Writer failed to send message via udp", e);
-            return 0;
-        } catch (UnresolvedAddressException e) {
-            AtsdUtil.logInfo("Writer failed to send message via udp: unresolved address", e);
-            return 0;
+            lineStart = lineEnd;
         }
+        send(message, start, end);
+        if (skipped > 0) {
+            oversizeCommands += skipped;
+            AtsdUtil.logInfo("Writer skipped " + skipped + " commands longer than " + maxPayloadSize + " bytes");
+        }
+    }
+
+    private void send(ByteBuffer message, int start, int end) throws IOException {
+        message.position(start);
+        if (start == end) {
+            return;
+        }
+        ByteBuffer datagram = message.duplicate();
+        datagram.limit(end);
+        datagramChannel.send(datagram, getAddress());
+        sentDatagrams++;
+        message.position(end);
+    }
+
+    public int getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+
+    public long getSentDatagrams() {
+        return sentDatagrams;
+    }
+
+    public long getOversizeCommands() {
+        return oversizeCommands;
+    }
+
+    /**
+     * @return number of commands not sent because sending failed or the circuit breaker was open
+     */
+    public long getDroppedCommands() {
+        return droppedCommands;
     }
 
     @Override
@@ -15,15 +15,19 @@
 
 package com.axibase.tsd.collector;
 
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class AtsdUtilTest {
@@ -77,4 +81,96 @@ public class AtsdUtilTest {
         assertEquals("\\n", AtsdUtil.sanitizeValue("\n"));
         assertEquals("\\n", AtsdUtil.sanitizeValue("\n\r"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testUnchangedInstance() {
+        String s = "com.axibase.Logger$Inner";
+        assertSame(s, AtsdUtil.sanitizeValue(s));
+        assertSame(s, AtsdUtil.sanitizeName(s));
+        assertSame(s, AtsdUtil.escapeCSV(s));
+        assertSame(s, AtsdUtil.sanitize(s));
+    }
+
+    @Test
+    public void testSameAsRegexImplementation() {
+        String[] samples = {
+                "", " ", "\t\r\n", "test", " test ", "a b", "a=b", "a\tb", "a,b", "a\"b", "'a'|b", "\"quoted\"",
+                "line1\nline2", "line1\r\n\r\nline2", "\r\nstart", "end\r\n", " \n ", "\u0001x\u0001",
+                "журнал", "😀 emoji", "x\u000By\fz", StringUtils.repeat("a b", 400)
+        };
+        for (String sample : samples) {
+            assertSameResults(sample);
+        }
+        Random random = new Random(42);
+        char[] alphabet = " \t\r\n\f\u000B\u0001=,\"'|abж😀".toCharArray();
+        for (int n = 0; n < 10000; n++) {
+            char[] chars = new char[random.nextInt(20)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            assertSameResults(new String(chars));
+        }
+    }
+
+    private static void assertSameResults(String s) {
+        assertEquals(s, Reference.sanitizeValue(s), AtsdUtil.sanitizeValue(s));
+        assertEquals(s, Reference.sanitizeName(s), AtsdUtil.sanitizeName(s));
+        assertEquals(s, Reference.escapeCSV(s), AtsdUtil.escapeCSV(s));
+        assertEquals(s, Reference.sanitize(s), AtsdUtil.sanitize(s));
+    }
+
+    /**
+     * Previous regular expression based implementation.
+     */
+    private static class Reference {
+        private static final Pattern SPACE = Pattern.compile("[[\\s]]");
+        private static final Pattern QUOTES = Pattern.compile("[[\'|\"]]");
+        private static final Pattern CRLF = Pattern.compile("[\\r\\n]+");
+
+        static String escapeCSV(String s) {
+            if (s == null) {
+                s = AtsdUtil.EMPTY_MESSAGE;
+            } else {
+                s = s.trim();
+                if (s.isEmpty()) {
+                    s = AtsdUtil.EMPTY_MESSAGE;
+                } else {
+                    s = StringEscapeUtils.escapeCsv(s);
+                    if (s.contains(" ") && !s.startsWith("\"")) {
+                        s = "\"" + s + "\"";
+                    }
+                }
+            }
+            return s;
+        }
+
+        static String sanitizeName(String s) {
+            s = StringEscapeUtils.escapeCsv(SPACE.matcher(s.trim()).replaceAll("_"));
+            if (s.contains("=") && !s.startsWith("\"")) {
+                s = "\"" + s + "\"";
+            }
+            return s;
+        }
+
+        static String sanitizeValue(String s) {
+            if (s == null) {
+                return AtsdUtil.EMPTY_MESSAGE;
+            }
+            if (s.length() > 1000) {
+                s = s.substring(0, 1000);
+            }
+            s = CRLF.matcher(s).replaceAll("\\\\n");
+            s = escapeCSV(s);
+            if (!s.startsWith("\"") && StringUtils.containsAny(s, AtsdUtil.ESCAPED_CHARS)) {
+                s = "\"" + s + "\"";
+            }
+            return s;
+        }
+
+        static String sanitize(String s) {
+            s = SPACE.matcher(s).replaceAll("_");
+            s = QUOTES.matcher(s).replaceAll("");
+            return s;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FragmentCacheTest {
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        FragmentCache<String> cache = new FragmentCache<>(2);
+        cache.put("a", new byte[]{'a'});
+        cache.put("b", new byte[]{'b'});
+        assertNotNull(cache.get("a"));
+        cache.put("c", new byte[]{'c'});
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+    }
+}
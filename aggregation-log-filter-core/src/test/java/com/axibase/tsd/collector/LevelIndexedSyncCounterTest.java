@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LevelIndexedSyncCounterTest {
+    private static final String[] LEVELS = {"INFO", "WARN", "ERROR"};
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        final MockCounter counter = new MockCounter();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        counter.increment(LEVELS[i % LEVELS.length]);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        counter.increment("NOTICE");
+
+        SimpleCounter<String> last = new SimpleCounter<>();
+        Map<String, Long> diff = toMap(counter.updateAndCreateDiff(last));
+        assertEquals(4, diff.size());
+        assertEquals(8 * 3334L, (long) diff.get("INFO"));
+        assertEquals(8 * 3333L, (long) diff.get("WARN"));
+        assertEquals(8 * 3333L, (long) diff.get("ERROR"));
+        assertEquals(1L, (long) diff.get("NOTICE"));
+
+        assertNull(counter.updateAndCreateDiff(last));
+        counter.increment("WARN");
+        diff = toMap(counter.updateAndCreateDiff(last));
+        assertEquals(1, diff.size());
+        assertEquals(1L, (long) diff.get("WARN"));
+    }
+
+    @Test
+    public void testIncrementLevel() {
+        MockCounter counter = new MockCounter();
+        counter.incrementLevel(1);
+        counter.incrementLevel(1);
+        counter.increment("WARN");
+        Map<String, Long> diff = toMap(counter.updateAndCreateDiff(new SimpleCounter<String>()));
+        assertEquals(1, diff.size());
+        assertEquals(3L, (long) diff.get("WARN"));
+    }
+
+    private static Map<String, Long> toMap(EventCounter<String> counter) {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, Long> entry : counter.values()) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private static class MockCounter extends LevelIndexedSyncCounter<String, String> {
+        MockCounter() {
+            super(LEVELS);
+        }
+
+        @Override
+        protected int levelIndex(String event) {
+            for (int i = 0; i < LEVELS.length; i++) {
+                if (LEVELS[i].equals(event)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        protected String level(String event) {
+            return event;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LevelRingBufferTest {
+    @Test
+    public void testDropsByLevel() {
+        LevelRingBuffer<String> buffer = new LevelRingBuffer<>(3, 2);
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.offer(2, "error-1"));
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(0, "info-" + i);
+        }
+        assertTrue(buffer.offer(2, "error-2"));
+        assertFalse(buffer.offer(2, "error-3"));
+        assertTrue(buffer.offer(1, "warn-1"));
+
+        assertEquals(3, buffer.getDroppedCount(0));
+        assertEquals(0, buffer.getDroppedCount(1));
+        assertEquals(1, buffer.getDroppedCount(2));
+
+        assertEquals("error-1", buffer.poll());
+        assertEquals("error-2", buffer.poll());
+        assertEquals("warn-1", buffer.poll());
+        assertEquals("info-0", buffer.poll());
+        assertEquals("info-1", buffer.poll());
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+
+        // slots are reused after polling
+        for (int i = 0; i < 10; i++) {
+            assertTrue(buffer.offer(0, "next-" + i));
+            assertEquals("next-" + i, buffer.poll());
+        }
+    }
+
+    @Test
+    public void testClaimAndCapacityByLevel() {
+        LevelRingBuffer<String> buffer = new LevelRingBuffer<>(new int[]{0, 2});
+        assertEquals(-1, buffer.claim(0));
+        assertEquals(1, buffer.getDroppedCount(0));
+
+        long first = buffer.claim(1);
+        long second = buffer.claim(1);
+        assertTrue(first >= 0 && second >= 0);
+        assertEquals(-1, buffer.claim(1));
+        assertEquals(1, buffer.getDroppedCount(1));
+        // a value is not polled before the slots before it are published
+        buffer.publish(1, second, "second");
+        assertNull(buffer.poll());
+        // a slot released without a value is skipped
+        buffer.publish(1, first, null);
+        assertEquals("second", buffer.poll());
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final LevelRingBuffer<Integer> buffer = new LevelRingBuffer<>(1, 64);
+        final int producers = 4;
+        final int perProducer = 20000;
+        Thread[] threads = new Thread[producers];
+        for (int t = 0; t < producers; t++) {
+            final int base = t * perProducer;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!buffer.offer(0, base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        Set<Integer> received = new HashSet<>();
+        while (received.size() < producers * perProducer) {
+            Integer value = buffer.poll();
+            if (value != null) {
+                assertTrue(received.add(value));
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(buffer.poll());
+    }
+}
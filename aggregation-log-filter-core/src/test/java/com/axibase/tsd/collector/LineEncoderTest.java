@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LineEncoderTest {
+    private static final String[] SAMPLES = {
+            null, "", " ", "\t\r\n", "test", " test ", "a b", "a=b", "a\tb", "a,b", "a\"b", "\"quoted\"",
+            "line1\nline2", "line1\r\n\r\nline2", "\r\nstart", "end\r\n", " \n ", "com.axibase.Logger$Inner",
+            "журнал", "😀 emoji", "lone \ud83d surrogate", "x\u000By\fz"
+    };
+
+    private final LineEncoder encoder = new LineEncoder(16, false);
+
+    @Test
+    public void testSanitizedValue() {
+        for (String sample : SAMPLES) {
+            assertArrayEquals(sample, utf8(AtsdUtil.sanitizeValue(sample)), bytes(encoder.clear().putSanitizedValue(sample)));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 999; i++) {
+            sb.append('a');
+        }
+        sb.append("😀 tail");
+        String truncated = sb.toString();
+        assertArrayEquals(utf8(AtsdUtil.sanitizeValue(truncated)), bytes(encoder.clear().putSanitizedValue(truncated)));
+    }
+
+    @Test
+    public void testSanitizedName() {
+        for (String sample : SAMPLES) {
+            if (sample != null) {
+                assertArrayEquals(sample, utf8(AtsdUtil.sanitizeName(sample)), bytes(encoder.clear().putSanitizedName(sample)));
+            }
+        }
+    }
+
+    @Test
+    public void testEscapedCsv() {
+        for (String sample : SAMPLES) {
+            assertArrayEquals(sample, utf8(AtsdUtil.escapeCSV(sample)), bytes(encoder.clear().putEscapedCsv(sample)));
+        }
+    }
+
+    @Test
+    public void testRandomStrings() {
+        Random random = new Random(42);
+        char[] alphabet = " \t\r\n=,\"'abéж😀\u000B".toCharArray();
+        for (int n = 0; n < 10000; n++) {
+            char[] chars = new char[random.nextInt(20)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String s = new String(chars);
+            assertArrayEquals(s, utf8(AtsdUtil.sanitizeValue(s)),
+                    bytes(encoder.clear().putSanitizedValue(s)));
+            assertArrayEquals(s, utf8(AtsdUtil.sanitizeName(s)),
+                    bytes(encoder.clear().putSanitizedName(s)));
+            assertArrayEquals(s, utf8(AtsdUtil.escapeCSV(s)),
+                    bytes(encoder.clear().putEscapedCsv(s)));
+        }
+    }
+
+    @Test
+    public void testNumbers() {
+        long[] values = {0, 1, -1, 42, Long.MAX_VALUE, Long.MIN_VALUE, 1234567890123L};
+        for (long value : values) {
+            assertEquals(String.valueOf(value), decode(encoder.clear().putLong(value)));
+        }
+    }
+
+    @Test
+    public void testDoubles() {
+        assertEquals("0.0", decode(encoder.clear().putDouble(0)));
+        assertEquals("100.0", decode(encoder.clear().putDouble(100)));
+        assertEquals("0.5", decode(encoder.clear().putDouble(0.5)));
+        assertEquals("0.333", decode(encoder.clear().putDouble(1.0 / 3)));
+        assertEquals("0.667", decode(encoder.clear().putDouble(2.0 / 3)));
+        assertEquals("1.05", decode(encoder.clear().putDouble(1.05)));
+        assertEquals("-2.5", decode(encoder.clear().putDouble(-2.5)));
+        assertEquals("0.0", decode(encoder.clear().putDouble(-0.0001)));
+        assertEquals("12345.001", decode(encoder.clear().putDouble(12345.001)));
+        assertEquals(String.valueOf(1e20), decode(encoder.clear().putDouble(1e20)));
+        assertEquals("NaN", decode(encoder.clear().putDouble(Double.NaN)));
+    }
+
+    @Test
+    public void testGrowth() {
+        StringBuilder expected = new StringBuilder();
+        encoder.clear();
+        for (int i = 0; i < 1000; i++) {
+            encoder.putLong(i).put((byte) ' ');
+            expected.append(i).append(' ');
+        }
+        assertEquals(expected.toString(), decode(encoder));
+
+        LineEncoder direct = new LineEncoder(16, true);
+        direct.putUtf8(expected);
+        assertEquals(expected.toString(), decode(direct));
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(AtsdUtil.UTF_8);
+    }
+
+    private static byte[] bytes(LineEncoder encoder) {
+        ByteBuffer buffer = encoder.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String decode(LineEncoder encoder) {
+        return new String(bytes(encoder), AtsdUtil.UTF_8);
+    }
+}
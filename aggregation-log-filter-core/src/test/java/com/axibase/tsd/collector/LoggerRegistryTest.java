@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerRegistryTest {
+    @Test
+    public void testEqualKeysShareId() {
+        LoggerRegistry<String> registry = new LoggerRegistry<>();
+        String name = "com.axibase.Logger";
+        int id = registry.idOf(name);
+        assertEquals(id, registry.idOf(name));
+        assertEquals(id, registry.idOf(new String(name)));
+        assertEquals(id + 1, registry.idOf("other"));
+        assertEquals(2, registry.size());
+        assertEquals(name, registry.key(id));
+    }
+
+    @Test
+    public void testManyLoggers() {
+        LoggerRegistry<String> registry = new LoggerRegistry<>();
+        String[] names = new String[5000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "logger" + i;
+            assertEquals(i, registry.idOf(names[i]));
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < names.length; i++) {
+                assertEquals(i, registry.idOf(names[i]));
+                assertEquals(i, registry.idOf(new String(names[i])));
+            }
+        }
+        assertEquals(names.length, registry.size());
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        final LoggerRegistry<String> registry = new LoggerRegistry<>();
+        final Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        String key = "logger" + (i % 2000);
+                        int id = registry.idOf(key);
+                        assertEquals(key, registry.key(id));
+                        ids.add(id);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2000, registry.size());
+        assertEquals(2000, ids.size());
+        for (int id : ids) {
+            assertTrue(id >= 0 && id < 2000);
+        }
+    }
+}
@@ -17,13 +17,18 @@ package com.axibase.tsd.collector;
 
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class SendMessageTriggerTest {
     @Test
     public void testOnEvent() throws Exception {
+        ManualClock clock = new ManualClock(0);
         SendMessageTrigger<String> trigger = new MockSendMessageTrigger();
+        trigger.setClock(clock);
 //        trigger.setEvery(1);
         trigger.setSendMultiplier(3.0d);
         trigger.setResetIntervalSeconds(1); // 1000 ms
@@ -37,12 +42,146 @@ public class SendMessageTriggerTest {
         assertFalse(trigger.onEvent("1")); // cnt=7
         assertFalse(trigger.onEvent("1")); // cnt=8
         assertTrue(trigger.onEvent("1")); // cnt=9 (3*3=9) --> true
-        Thread.sleep(550); // < 1000ms
+        clock.advance(550); // < 1000ms
         assertFalse(trigger.onEvent("1")); // cnt=10
-        Thread.sleep(550); // > 1000ms
+        clock.advance(550); // > 1000ms
         assertTrue(trigger.onEvent("1")); // cnt=1 --> true
     }
 
+    @Test
+    public void testConcurrentEvents() throws Exception {
+        final SendMessageTrigger<String> trigger = new MockSendMessageTrigger();
+        trigger.setSendMultiplier(2.0d);
+        final AtomicInteger sent = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        if (trigger.onEvent("key")) {
+                            sent.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // events 1, 2, 4, ..., 65536 out of 80000
+        assertEquals(17, sent.get());
+    }
+
+    @Test
+    public void testHistoryEviction() throws Exception {
+        ManualClock clock = new ManualClock(0);
+        SendMessageTrigger<String> trigger = new MockSendMessageTrigger();
+        trigger.setClock(clock);
+        trigger.setSendMultiplier(3.0d);
+        trigger.setResetIntervalSeconds(60);
+        trigger.setHistoryCapacity(16);
+        assertTrue(trigger.onEvent("hot"));
+        for (int i = 0; i < 40; i++) {
+            trigger.onEvent("hot");
+            trigger.onEvent("key" + i);
+            clock.advance(20);
+        }
+        assertTrue(trigger.getHistorySize() <= trigger.getHistoryCapacity());
+        assertTrue(trigger.getEvictionCount() >= 40 + 1 - trigger.getHistoryCapacity());
+        // the recently used key keeps its history: 42 events since the start of the period
+        assertFalse(trigger.onEvent("hot"));
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        ManualClock clock = new ManualClock(0);
+        SendMessageTrigger<String> trigger = new MockSendMessageTrigger();
+        trigger.setClock(clock);
+        trigger.setResetIntervalSeconds(1);
+        trigger.onEvent("1");
+        trigger.onEvent("2");
+        trigger.evictIdle();
+        assertEquals(2, trigger.getHistorySize());
+        clock.advance(1100);
+        trigger.evictIdle();
+        assertEquals(0, trigger.getHistorySize());
+        assertEquals(2, trigger.getEvictionCount());
+    }
+
+    @Test
+    public void testResetAfterLongIdle() throws Exception {
+        ManualClock clock = new ManualClock(System.currentTimeMillis());
+        SendMessageTrigger<String> trigger = new MockSendMessageTrigger();
+        trigger.setClock(clock);
+        trigger.setSendMultiplier(2.0d);
+        trigger.setResetIntervalSeconds(600);
+        assertTrue(trigger.onEvent("1")); // cnt=1
+        assertTrue(trigger.onEvent("1")); // cnt=2
+        assertFalse(trigger.onEvent("1")); // cnt=3
+        clock.advance(599 * 1000L);
+        assertTrue(trigger.onEvent("1")); // cnt=4
+        clock.advance(2 * 1000L);
+        assertTrue(trigger.onEvent("1")); // new period, cnt=1
+        assertTrue(trigger.onEvent("1")); // cnt=2
+        assertFalse(trigger.onEvent("1")); // cnt=3
+    }
+
+    @Test
+    public void testHistoryIsBoundedForManyKeyIds() throws Exception {
+        ManualClock clock = new ManualClock(0);
+        SendMessageTrigger<String> trigger = new MockSendMessageTrigger();
+        trigger.setClock(clock);
+        trigger.setHistoryCapacity(16);
+        for (int id = 0; id < 100000; id++) {
+            assertTrue(trigger.onEvent("key", id));
+            clock.advance(16);
+        }
+        assertTrue(trigger.getHistorySize() <= 16);
+        assertEquals(100000 - trigger.getHistorySize(), trigger.getEvictionCount());
+    }
+
+    @Test
+    public void testKeysTouchedInCurrentTimeUnitAreKept() throws Exception {
+        ManualClock clock = new ManualClock(0);
+        SendMessageTrigger<String> trigger = new MockSendMessageTrigger();
+        trigger.setClock(clock);
+        trigger.setSendMultiplier(2.0d);
+        trigger.setResetIntervalSeconds(60);
+        trigger.setHistoryCapacity(16);
+        int sent = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int id = 0; id < 1000; id++) {
+                if (trigger.onEvent("key", id)) {
+                    sent++;
+                }
+            }
+        }
+        assertEquals(16, trigger.getHistorySize());
+        assertEquals(0, trigger.getEvictionCount());
+        // keys without a slot are sampled together instead of sending their first event each time
+        assertTrue("sent " + sent, sent < 100);
+        clock.advance(16);
+        assertTrue(trigger.onEvent("key", 1000));
+        assertEquals(1, trigger.getEvictionCount());
+    }
+
+    @Test
+    public void testAcceptFiltersBothEntryPoints() throws Exception {
+        SendMessageTrigger<String> trigger = new MockSendMessageTrigger() {
+            @Override
+            protected boolean accept(String event) {
+                return !"skip".equals(event);
+            }
+        };
+        assertFalse(trigger.onEvent("skip"));
+        assertFalse(trigger.onEvent("skip", 1));
+        assertTrue(trigger.onEvent("send"));
+        assertTrue(trigger.onEvent("send", 2));
+        assertEquals(2, trigger.getHistorySize());
+    }
+
     private static class MockSendMessageTrigger extends SendMessageTrigger<String> {
         @Override
         public String resolveKey(String event) {
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BatchTest {
+    private final List<String> writes = new ArrayList<>();
+    private boolean busy;
+    private boolean failing;
+    private int failAfter = -1;
+
+    private final WritableByteChannel target = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failing) {
+                throw new IOException("Connection refused");
+            }
+            if (failAfter >= 0) {
+                // a stream which takes part of the data into its own buffer and fails before sending it
+                src.position(src.position() + Math.min(failAfter, src.remaining()));
+                throw new IOException("Connection reset");
+            }
+            if (busy) {
+                return 0;
+            }
+            byte[] data = new byte[src.remaining()];
+            src.get(data);
+            writes.add(new String(data, AtsdUtil.UTF_8));
+            return data.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    };
+
+    @Test
+    public void testSingleWritePerFlush() throws Exception {
+        Batch batch = new Batch(target, 1024);
+        batch.write(utf8("line1\n"));
+        batch.write(utf8("line2\n"));
+        assertEquals(12, batch.size());
+        assertEquals(0, writes.size());
+        batch.flush();
+        assertEquals(1, writes.size());
+        assertEquals("line1\nline2\n", writes.get(0));
+        assertEquals(0, batch.size());
+        batch.flush();
+        assertEquals(1, writes.size());
+    }
+
+    @Test
+    public void testSplitAtLineEnds() throws Exception {
+        Batch batch = new Batch(target, 10);
+        batch.write(utf8("aaaa\nbbbb\ncc\n"));
+        batch.write(utf8("a-very-long-line\nd\n"));
+        batch.flush();
+        assertEquals(4, writes.size());
+        assertEquals("aaaa\nbbbb\n", writes.get(0));
+        assertEquals("cc\n", writes.get(1));
+        assertEquals("a-very-long-line\n", writes.get(2));
+        assertEquals("d\n", writes.get(3));
+    }
+
+    @Test
+    public void testGrowth() throws Exception {
+        Batch batch = new Batch(target, 1024 * 1024);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            String line = "series e:entity m:metric=" + i + "\n";
+            expected.append(line);
+            batch.write(utf8(line));
+        }
+        batch.close();
+        assertEquals(1, writes.size());
+        assertEquals(expected.toString(), writes.get(0));
+    }
+
+    @Test
+    public void testUnsentWriteKeptForNextFlush() throws Exception {
+        Batch batch = new Batch(target, 10);
+        batch.write(utf8("aaaa\nbbbb\ncc\n"));
+        busy = true;
+        batch.flush();
+        assertEquals(0, writes.size());
+        assertEquals(10, batch.size());
+        assertEquals(3, batch.getDroppedBytes());
+
+        busy = false;
+        batch.write(utf8("d\n"));
+        batch.flush();
+        assertEquals(2, writes.size());
+        assertEquals("aaaa\nbbbb\n", writes.get(0));
+        assertEquals("d\n", writes.get(1));
+        assertEquals(0, batch.size());
+        assertEquals(3, batch.getDroppedBytes());
+    }
+
+    @Test
+    public void testFailedWriteKeptForNextFlush() throws Exception {
+        Batch batch = new Batch(target, 10);
+        batch.write(utf8("aaaa\nbbbb\n"));
+        failing = true;
+        try {
+            batch.flush();
+            fail();
+        } catch (IOException e) {
+            assertEquals(10, batch.size());
+        }
+        failing = false;
+        batch.close();
+        assertEquals(1, writes.size());
+        assertEquals("aaaa\nbbbb\n", writes.get(0));
+        assertEquals(0, batch.getDroppedBytes());
+    }
+
+    @Test
+    public void testPartiallyConsumedLineSentAgain() throws Exception {
+        Batch batch = new Batch(target, 1024);
+        batch.write(utf8("aaaa\nbbbb\ncc\n"));
+        failAfter = 7;
+        try {
+            batch.flush();
+            fail();
+        } catch (IOException e) {
+            assertEquals(8, batch.size());
+        }
+        failAfter = -1;
+        batch.flush();
+        assertEquals(1, writes.size());
+        assertEquals("bbbb\ncc\n", writes.get(0));
+        assertEquals(0, batch.getDroppedBytes());
+    }
+
+    private static ByteBuffer utf8(String s) {
+        return ByteBuffer.wrap(s.getBytes(AtsdUtil.UTF_8));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NioTcpAtsdWriterTest {
+    @Test
+    public void testSend() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            NioTcpAtsdWriter writer = new NioTcpAtsdWriter("localhost", server.getLocalPort(), 1024 * 1024);
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                String command = "series e:test m:metric=" + i + "\n";
+                expected.append(command);
+                assertEquals(command.length(), writer.write(ByteBuffer.wrap(command.getBytes(AtsdUtil.UTF_8))));
+            }
+            writer.close();
+            assertFalse(writer.isOpen());
+            assertEquals(0, writer.getQueuedBytes());
+            assertEquals(0, writer.getDroppedWrites());
+            try (Socket socket = server.accept()) {
+                assertEquals(expected.toString(), read(socket.getInputStream()));
+            }
+        }
+    }
+
+    @Test
+    public void testReconnectResendsInterruptedCommand() throws Exception {
+        final int chunks = 500;
+        final int commandsPerChunk = 1000;
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(30000);
+            final NioTcpAtsdWriter writer = new NioTcpAtsdWriter("localhost", server.getLocalPort(), 64 * 1024 * 1024);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = chunk * commandsPerChunk; i < (chunk + 1) * commandsPerChunk; i++) {
+                    sb.append("series e:test m:metric=").append(i).append('\n');
+                }
+                writer.write(ByteBuffer.wrap(sb.toString().getBytes(AtsdUtil.UTF_8)));
+            }
+            // the first connection is not read, it is reset when the socket buffers are full
+            try (Socket first = server.accept()) {
+                long queued;
+                do {
+                    queued = writer.getQueuedBytes();
+                    Thread.sleep(200);
+                } while (writer.getQueuedBytes() != queued);
+                assertTrue(queued > 0);
+                first.setSoLinger(true, 0);
+            }
+            Thread closer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long deadline = System.currentTimeMillis() + 30000;
+                    while (writer.getQueuedBytes() > 0 && System.currentTimeMillis() < deadline) {
+                        Thread.yield();
+                    }
+                    try {
+                        writer.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            closer.start();
+            String received;
+            try (Socket second = server.accept()) {
+                received = read(second.getInputStream());
+            }
+            closer.join();
+            // commands lost with the reset connection are not resent, the interrupted one is resent as a whole
+            String[] lines = received.split("\n");
+            int first = Integer.parseInt(lines[0].substring("series e:test m:metric=".length()));
+            assertTrue(first > 0);
+            assertEquals(chunks * commandsPerChunk - first, lines.length);
+            for (int i = 0; i < lines.length; i++) {
+                assertEquals("series e:test m:metric=" + (first + i), lines[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testDropWhenQueueIsFull() throws Exception {
+        int port;
+        try (ServerSocket unused = new ServerSocket(0)) {
+            port = unused.getLocalPort();
+        }
+        NioTcpAtsdWriter writer = new NioTcpAtsdWriter("localhost", port, 1024);
+        byte[] command = new byte[100];
+        for (int i = 0; i < 20; i++) {
+            writer.write(ByteBuffer.wrap(command));
+        }
+        assertEquals(1000, writer.getQueuedBytes());
+        assertEquals(10, writer.getDroppedWrites());
+        assertEquals(1000, writer.getDroppedBytes());
+        assertTrue(writer.isDropping());
+        writer.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQueueSmallerThanBatch() {
+        new NioTcpAtsdWriter("localhost", 8081, 1024, 2048);
+    }
+
+    private static String read(InputStream inputStream) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = inputStream.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), AtsdUtil.UTF_8);
+    }
+}
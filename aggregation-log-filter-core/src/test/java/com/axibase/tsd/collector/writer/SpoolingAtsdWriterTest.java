@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+import com.axibase.tsd.collector.ManualClock;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolingAtsdWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWriter target = new MockWriter();
+    private final ManualClock clock = new ManualClock(1000);
+
+    @Test
+    public void testPassThrough() throws Exception {
+        SpoolingAtsdWriter spool = createSpool(folder.getRoot());
+        String commands = commands(0, 10);
+        write(spool, commands);
+        assertEquals("", target.received.toString());
+        spool.flush();
+        assertEquals(commands, target.received.toString());
+        assertEquals(0, spool.getSpooledBytes());
+        spool.close();
+    }
+
+    @Test
+    public void testReplayInOrder() throws Exception {
+        SpoolingAtsdWriter spool = createSpool(folder.getRoot());
+        target.failing = true;
+        for (int cycle = 0; cycle < 3; cycle++) {
+            write(spool, commands(cycle * 10, 10));
+            clock.advance(1000);
+            spool.flush();
+        }
+        assertEquals(commands(0, 30).length(), spool.getSpooledBytes());
+
+        target.failing = false;
+        write(spool, commands(30, 10));
+        clock.advance(1000);
+        spool.flush();
+        // the current cycle and one second of the replay rate are sent, the oldest commands first
+        String sent = target.received.toString();
+        assertTrue(sent.length() >= commands(0, 10).length() + 100);
+        assertTrue(commands(0, 40).startsWith(sent));
+        while (spool.getSpooledBytes() > 0) {
+            clock.advance(1000);
+            spool.flush();
+        }
+        assertEquals(commands(0, 40), target.received.toString());
+        spool.close();
+    }
+
+    @Test
+    public void testDropOldestSegment() throws Exception {
+        SpoolingAtsdWriter spool = new SpoolingAtsdWriter(target, folder.getRoot(), 4096, 1024);
+        target.failing = true;
+        write(spool, commands(0, 500));
+        spool.flush();
+        assertTrue(spool.getDroppedBytes() > 0);
+        assertTrue(spool.getSpooledBytes() <= 4096);
+
+        target.failing = false;
+        spool.flush();
+        String sent = target.received.toString();
+        assertEquals(spool.getDroppedBytes() + sent.length(), commands(0, 500).length());
+        assertTrue(commands(0, 500).endsWith(sent));
+        spool.close();
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        File directory = new File(folder.getRoot(), "spool");
+        SpoolingAtsdWriter spool = createSpool(directory);
+        target.failing = true;
+        write(spool, commands(0, 10));
+        spool.flush();
+        spool.close();
+
+        target.failing = false;
+        spool = createSpool(directory);
+        assertEquals(commands(0, 10).length(), spool.getSpooledBytes());
+        clock.advance(1000);
+        spool.flush();
+        assertTrue(target.received.length() < commands(0, 10).length());
+        while (spool.getSpooledBytes() > 0) {
+            clock.advance(1000);
+            spool.flush();
+        }
+        assertEquals(commands(0, 10), target.received.toString());
+        spool.close();
+    }
+
+    @Test
+    public void testRestartAfterReuse() throws Exception {
+        File directory = new File(folder.getRoot(), "spool");
+        SpoolingAtsdWriter spool = createSpool(directory);
+        write(spool, commands(0, 100));
+        spool.flush();
+        write(spool, commands(100, 1));
+        spool.flush();
+        spool.close();
+        assertEquals(commands(0, 101), target.received.toString());
+
+        spool = createSpool(directory);
+        assertEquals(0, spool.getSpooledBytes());
+        clock.advance(1000);
+        spool.flush();
+        assertEquals(commands(0, 101), target.received.toString());
+        spool.close();
+    }
+
+    @Test
+    public void testTargetWithoutProgress() throws Exception {
+        SpoolingAtsdWriter spool = createSpool(folder.getRoot());
+        target.busy = true;
+        write(spool, commands(0, 10));
+        spool.flush();
+        assertEquals(commands(0, 10).length(), spool.getSpooledBytes());
+
+        target.busy = false;
+        clock.advance(1000);
+        while (spool.getSpooledBytes() > 0) {
+            clock.advance(1000);
+            spool.flush();
+        }
+        assertEquals(commands(0, 10), target.received.toString());
+        spool.close();
+    }
+
+    private SpoolingAtsdWriter createSpool(File directory) throws IOException {
+        SpoolingAtsdWriter spool = new SpoolingAtsdWriter(target, directory, 1024 * 1024);
+        spool.setClock(clock);
+        spool.setReplayRate(100);
+        return spool;
+    }
+
+    private static void write(WritableByteChannel channel, String commands) throws IOException {
+        channel.write(ByteBuffer.wrap(commands.getBytes(AtsdUtil.UTF_8)));
+    }
+
+    private static String commands(int from, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < from + count; i++) {
+            sb.append("series e:test m:metric=").append(i).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static class MockWriter implements WritableByteChannel {
+        private final StringBuilder received = new StringBuilder();
+        private boolean failing;
+        private boolean busy;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failing) {
+                throw new IOException("Connection refused");
+            }
+            if (busy) {
+                return 0;
+            }
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            received.append(new String(bytes, AtsdUtil.UTF_8));
+            return bytes.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
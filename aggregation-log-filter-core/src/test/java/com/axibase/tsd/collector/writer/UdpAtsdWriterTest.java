@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.writer;
+
+import com.axibase.tsd.collector.AtsdUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UdpAtsdWriterTest {
+    private DatagramChannel server;
+    private UdpAtsdWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        server = DatagramChannel.open();
+        server.bind(new InetSocketAddress("localhost", 0));
+        writer = new UdpAtsdWriter("localhost", server.socket().getLocalPort(), 512);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testPacking() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("series e:test m:metric=").append(i).append('\n');
+        }
+        String commands = sb.toString();
+        assertEquals(commands.length(), writer.write(ByteBuffer.wrap(commands.getBytes(AtsdUtil.UTF_8))));
+        assertEquals(commands, receive(writer.getSentDatagrams()));
+        assertTrue(writer.getSentDatagrams() < 10);
+        assertEquals(0, writer.getOversizeCommands());
+    }
+
+    @Test
+    public void testOversizeCommand() throws Exception {
+        StringBuilder oversize = new StringBuilder("series e:test m:metric=1 t:tag=");
+        while (oversize.length() < 600) {
+            oversize.append('x');
+        }
+        String commands = "series e:test m:first=1\n" + oversize + "\nseries e:test m:last=1";
+        byte[] bytes = commands.getBytes(AtsdUtil.UTF_8);
+        assertEquals(bytes.length, writer.write(ByteBuffer.wrap(bytes)));
+        assertEquals(1, writer.getOversizeCommands());
+        assertEquals(0, writer.getDroppedCommands());
+        assertEquals(2, writer.getSentDatagrams());
+        assertEquals("series e:test m:first=1\nseries e:test m:last=1", receive(2));
+    }
+
+    @Test
+    public void testDroppedWhileCircuitOpen() throws Exception {
+        writer.getCircuitBreaker().failure(new IOException("test"));
+        ByteBuffer commands = ByteBuffer.wrap("series e:test m:a=1\nseries e:test m:b=1\n".getBytes(AtsdUtil.UTF_8));
+        assertEquals(0, writer.write(commands));
+        assertEquals(0, commands.position());
+        assertEquals(2, writer.getDroppedCommands());
+        assertEquals(0, writer.getSentDatagrams());
+    }
+
+    private String receive(long datagrams) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (int i = 0; i < datagrams; i++) {
+            buffer.clear();
+            server.receive(buffer);
+            buffer.flip();
+            assertTrue(buffer.remaining() <= 512);
+            sb.append(new String(buffer.array(), 0, buffer.remaining(), AtsdUtil.UTF_8));
+        }
+        return sb.toString();
+    }
+}
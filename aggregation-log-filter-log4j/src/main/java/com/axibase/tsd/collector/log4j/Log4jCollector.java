@@ -19,6 +19,7 @@ import com.axibase.tsd.collector.Aggregator;
 import com.axibase.tsd.collector.AtsdUtil;
 import com.axibase.tsd.collector.config.SeriesSenderConfig;
 import com.axibase.tsd.collector.config.Tag;
+import com.axibase.tsd.collector.config.WriterConfig;
 import com.axibase.tsd.collector.writer.*;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Level;
@@ -39,6 +40,7 @@ public class Log4jCollector extends Filter {
     private Log4jMessageWriter log4jMessageWriter;
     private WritableByteChannel writer;
     private SeriesSenderConfig seriesSenderConfig;
+    private WriterConfig writerConfig;
     /**
      * Settings from log4j file.
      */
@@ -53,6 +55,21 @@ public class Log4jCollector extends Filter {
     private String debug = "false";
     private String pattern;
     private int messageLength = -1;
+    private Integer urgentEnqueueTimeoutMs;
+    private Boolean deferMessageFormatting;
+    private Integer rateIntervalSeconds;
+    // writer
+    private Boolean httpBatch;
+    private Integer maxBatchSize;
+    private Boolean httpGzip;
+    private Integer gzipMinSize;
+    private Boolean tcpNonBlocking;
+    private Integer tcpQueueSize;
+    private Integer udpPayloadSize;
+    private String spoolDirectory;
+    private Long spoolMaxSize;
+    private Long spoolReplayRate;
+    private String endpointWeights;
     // tags
     private final List<Tag> tags = new ArrayList<>();
     private final List<String> mdcTags = new ArrayList<>();
@@ -80,7 +97,8 @@ public class Log4jCollector extends Filter {
         super.activateOptions();
         initSeriesSenderConfig();
         try {
-            writer = AtsdWriterFactory.getWriter(url, ignoreSslErrors);
+            initWriterConfig();
+            writer = AtsdWriterFactory.getWriter(url, ignoreSslErrors, writerConfig);
             writer = LoggingWrapper.tryWrap(debug, writer);
             log4jMessageWriter = new Log4jMessageWriter();
             log4jMessageWriter.setAtsdUrl(url);
@@ -106,6 +124,7 @@ public class Log4jCollector extends Filter {
 
             aggregator = new Aggregator<>(log4jMessageWriter, new Log4jEventProcessor());
             aggregator.setWriter(writer);
+            aggregator.setWriterConfig(writerConfig);
             if (seriesSenderConfig != null) {
                 aggregator.setSeriesSenderConfig(seriesSenderConfig);
             }
@@ -136,6 +155,52 @@ public class Log4jCollector extends Filter {
         if (sendLoggerCounter != null) {
             seriesSenderConfig.setSendLoggerCounter(sendLoggerCounter);
         }
+        if (urgentEnqueueTimeoutMs != null) {
+            seriesSenderConfig.setUrgentEnqueueTimeoutMs(urgentEnqueueTimeoutMs);
+        }
+        if (deferMessageFormatting != null) {
+            seriesSenderConfig.setDeferMessageFormatting(deferMessageFormatting);
+        }
+        if (rateIntervalSeconds != null) {
+            seriesSenderConfig.setRateIntervalSeconds(rateIntervalSeconds);
+        }
+    }
+
+    private void initWriterConfig() {
+        writerConfig = new WriterConfig();
+        if (httpBatch != null) {
+            writerConfig.setHttpBatch(httpBatch);
+        }
+        if (maxBatchSize != null) {
+            writerConfig.setMaxBatchSize(maxBatchSize);
+        }
+        if (httpGzip != null) {
+            writerConfig.setHttpGzip(httpGzip);
+        }
+        if (gzipMinSize != null) {
+            writerConfig.setGzipMinSize(gzipMinSize);
+        }
+        if (tcpNonBlocking != null) {
+            writerConfig.setTcpNonBlocking(tcpNonBlocking);
+        }
+        if (tcpQueueSize != null) {
+            writerConfig.setTcpQueueSize(tcpQueueSize);
+        }
+        if (udpPayloadSize != null) {
+            writerConfig.setUdpPayloadSize(udpPayloadSize);
+        }
+        if (spoolDirectory != null) {
+            writerConfig.setSpoolDirectory(spoolDirectory);
+        }
+        if (spoolMaxSize != null) {
+            writerConfig.setSpoolMaxSize(spoolMaxSize);
+        }
+        if (spoolReplayRate != null) {
+            writerConfig.setSpoolReplayRate(spoolReplayRate);
+        }
+        if (endpointWeights != null) {
+            writerConfig.setEndpointWeights(endpointWeights);
+        }
     }
 
     public void setEntity(String entity) {
@@ -193,6 +258,9 @@ public class Log4jCollector extends Filter {
                     if (vParts.length >= 2) {
                         trigger.setSendMultiplier(Double.parseDouble(vParts[1]));
                     }
+                    if (vParts.length >= 3) {
+                        trigger.setHistoryCapacity(Integer.parseInt(vParts[2]));
+                    }
                 }
                 trigger.init();
                 triggers.add(trigger);
@@ -219,4 +287,60 @@ public class Log4jCollector extends Filter {
     public void setIgnoreSslErrors(String ignoreSslErrors) {
         this.ignoreSslErrors = ignoreSslErrors;
     }
+
+    public void setHttpBatch(boolean httpBatch) {
+        this.httpBatch = httpBatch;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setUrgentEnqueueTimeoutMs(int urgentEnqueueTimeoutMs) {
+        this.urgentEnqueueTimeoutMs = urgentEnqueueTimeoutMs;
+    }
+
+    public void setDeferMessageFormatting(boolean deferMessageFormatting) {
+        this.deferMessageFormatting = deferMessageFormatting;
+    }
+
+    public void setRateIntervalSeconds(int rateIntervalSeconds) {
+        this.rateIntervalSeconds = rateIntervalSeconds;
+    }
+
+    public void setHttpGzip(boolean httpGzip) {
+        this.httpGzip = httpGzip;
+    }
+
+    public void setGzipMinSize(int gzipMinSize) {
+        this.gzipMinSize = gzipMinSize;
+    }
+
+    public void setTcpNonBlocking(boolean tcpNonBlocking) {
+        this.tcpNonBlocking = tcpNonBlocking;
+    }
+
+    public void setTcpQueueSize(int tcpQueueSize) {
+        this.tcpQueueSize = tcpQueueSize;
+    }
+
+    public void setUdpPayloadSize(int udpPayloadSize) {
+        this.udpPayloadSize = udpPayloadSize;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    public void setSpoolReplayRate(long spoolReplayRate) {
+        this.spoolReplayRate = spoolReplayRate;
+    }
+
+    public void setEndpointWeights(String endpointWeights) {
+        this.endpointWeights = endpointWeights;
+    }
 }
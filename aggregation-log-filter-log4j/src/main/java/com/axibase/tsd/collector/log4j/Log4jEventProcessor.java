@@ -37,4 +37,19 @@ public class Log4jEventProcessor
     public String extractKey(LoggingEvent event) {
         return event.getLoggerName();
     }
+
+    @Override
+    public int levelCount() {
+        return Log4jSyncCounter.levelCount();
+    }
+
+    @Override
+    public int levelIndex(LoggingEvent event) {
+        return Log4jSyncCounter.indexOf(event.getLevel());
+    }
+
+    @Override
+    public int levelIndex(int intLevel) {
+        return Log4jSyncCounter.indexOf(intLevel);
+    }
 }
@@ -36,8 +36,8 @@ public class Log4jEventTrigger extends SendMessageTrigger<LoggingEvent>{
     }
 
     @Override
-    public boolean onEvent(LoggingEvent event) {
-        return event != null && event.getLevel().toInt() == level.toInt() && super.onEvent(event);
+    protected boolean accept(LoggingEvent event) {
+        return event != null && event.getLevel().toInt() == level.toInt();
     }
 
     public static boolean isErrorInstance(LoggingEvent event) {
@@ -18,11 +18,12 @@ package com.axibase.tsd.collector.log4j;
 import com.axibase.tsd.collector.*;
 import com.axibase.tsd.collector.config.SeriesSenderConfig;
 import com.axibase.tsd.collector.config.Tag;
+import com.axibase.tsd.collector.config.WriterConfig;
 import com.axibase.tsd.collector.writer.BaseHttpAtsdWriter;
+import com.axibase.tsd.collector.writer.Batch;
 import com.axibase.tsd.collector.writer.LoggingWrapper;
 import com.axibase.tsd.collector.writer.TcpAtsdWriter;
 import org.apache.log4j.Level;
-import org.apache.log4j.MDC;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.spi.LocationInfo;
 import org.apache.log4j.spi.LoggingEvent;
@@ -31,6 +32,7 @@ import org.apache.log4j.spi.ThrowableInformation;
 import java.io.IOException;
 import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.regex.Pattern;
 
 public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, String> {
     private Map<String, String> tags = new LinkedHashMap<String, String>();
@@ -39,16 +41,22 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
     private SeriesSenderConfig seriesSenderConfig = SeriesSenderConfig.DEFAULT;
     private final Map<String, CounterWithSum> totals = new HashMap<String, CounterWithSum>();
     private MessageHelper messageHelper = new MessageHelper();
+    private Clock clock = CachedClock.INSTANCE;
     private String pattern;
     private String atsdUrl;
+    private static final Pattern LOCATION_PATTERN = Pattern.compile("%[-.\\d]*[CFLlM]");
+    private static final Pattern MDC_PATTERN = Pattern.compile("%[-.\\d]*X");
     private PatternLayout patternLayout;
-    private Set<String> mdcTags = new HashSet<>();
+    private boolean locationRequired;
+    private boolean mdcRequired;
+    private String[] mdcTags = new String[0];
     private int messageLength = -1;
 
     @Override
     public synchronized void writeStatMessages(WritableByteChannel writer,
                                                Map<String, EventCounter<String>> diff,
-                                               long deltaTime) throws IOException {
+                                               long deltaTime,
+                                               long time) throws IOException {
         if (deltaTime < 1) {
             throw new IllegalArgumentException("Illegal delta time value: " + deltaTime);
         }
@@ -75,7 +83,6 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
             }
         }
 
-        long time = System.currentTimeMillis();
 
         // compose & clean
         for (Map.Entry<LoggerAndLevel<String>, CounterWithSum> entry : loggerEventHistory.entrySet()) {
@@ -89,7 +96,7 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
                 counter.clean();
                 try {
                     if (seriesSenderConfig.isSendLoggerCounter()) {
-                        messageHelper.writeCounter(writer, key, level, counter.getSum());
+                        messageHelper.writeCounter(writer, time, key, level, counter.getSum());
                     }
                 } catch (Exception e) {
                     AtsdUtil.logError("Could not write log_event_counter series " + atsdUrl + " - " + e.getMessage());
@@ -113,11 +120,15 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
             String level = entry.getKey();
             CounterWithSum counterWithSum = entry.getValue();
             try {
+                long delta = counterWithSum.getValue();
                 counterWithSum.clean();
                 // write total count
                 messageHelper.writeTotalCounter(writer, time, counterWithSum, level);
+                // write rate normalized to the rate interval
+                messageHelper.writeTotalRate(writer, time,
+                        (double) delta * seriesSenderConfig.getRateIntervalMs() / deltaTime, level);
             } catch (Exception e) {
-                AtsdUtil.logError("Could not write log_event_total_counter series " + atsdUrl + " - " + e.getMessage());
+                AtsdUtil.logError("Could not write log_event_total series " + atsdUrl + " - " + e.getMessage());
             } finally {
 //                entry.getValue().decrementZeroRepeats();
             }
@@ -125,18 +136,14 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
     }
 
     @Override
-    public void writeSingles(WritableByteChannel writer, CountedQueue<EventWrapper<LoggingEvent>> singles) throws IOException {
-        EventWrapper<LoggingEvent> wrapper;
-        while ((wrapper = singles.poll()) != null) {
-            writeSingle(writer, wrapper);
-        }
-    }
-
-    private void writeSingle(WritableByteChannel writer, EventWrapper<LoggingEvent> wrapper) {
+    public void writeSingle(WritableByteChannel writer, EventWrapper<LoggingEvent> wrapper) {
         try {
             LoggingEvent event = wrapper.getEvent();
             StringBuilder sb = new StringBuilder();
             String message = wrapper.getMessage();
+            if (message == null) {
+                message = format(event);
+            }
             if (messageLength >= 0)
                 message = message.substring(0, Math.min(message.length(), messageLength));
             int lines = wrapper.getLines();
@@ -155,24 +162,20 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
                 }
                 message = msb.toString();
             }
-            writeMessage(writer, event, sb, message, wrapper.getContext());
+            writeMessage(writer, event, sb, message, wrapper.getMdcValues());
         } catch (Exception e) {
             AtsdUtil.logError("Could not write message " + atsdUrl + " " + e.getMessage());
         }
     }
 
-    public boolean sendErrorInstance(WritableByteChannel writer, LoggingEvent loggingEvent) {
-        if (Log4jEventTrigger.isErrorInstance(loggingEvent)) {
-            writeSingle(writer, createWrapper(loggingEvent, Integer.MAX_VALUE));
-            return true;
-        }
-        return false;
+    public boolean isErrorInstance(LoggingEvent event) {
+        return Log4jEventTrigger.isErrorInstance(event);
     }
 
     private void writeMessage(WritableByteChannel writer,
                               LoggingEvent event,
                               StringBuilder sb,
-                              String message, Map context) throws IOException {
+                              String message, String[] mdcValues) throws IOException {
         final String levelValue = event.getLevel().toString();
         final String loggerName = event.getLoggerName();
         LocationInfo locationInformation = event.getLocationInformation();
@@ -182,14 +185,13 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
             locationMap.put("line", locationInformation.getLineNumber());
             locationMap.put("method", locationInformation.getMethodName());
         }
-        if (context != null && mdcTags.size() > 0) {
-            Set keySet = context.keySet();
-            for (String mdcTag : mdcTags) {
-                if (keySet.contains(mdcTag))
-                    locationMap.put(mdcTag, (String) context.get(mdcTag));
+        if (mdcValues != null) {
+            for (int i = 0; i < mdcValues.length; i++) {
+                if (mdcValues[i] != null)
+                    locationMap.put(mdcTags[i], mdcValues[i]);
             }
         }
-        messageHelper.writeMessage(writer, sb, message, levelValue, loggerName, locationMap);
+        messageHelper.writeMessage(writer, event.getTimeStamp(), sb, message, levelValue, loggerName, locationMap);
     }
 
     @Override
@@ -210,11 +212,15 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
         stringSettings.put("level", Level.toLevel(level).toString());
         stringSettings.put("intervalSeconds", intervalSeconds + "");
         stringSettings.put("framework", "log4j");
-        messageHelper.init(writer, stringSettings);
+        // the commands written on start are sent in one batch before the status of the writer is checked
+        final Batch batch = writer == null ? null : new Batch(writer, WriterConfig.DEFAULT_MAX_BATCH_SIZE);
+        messageHelper.init(batch, stringSettings);
 
         if (pattern != null) {
             patternLayout = new PatternLayout(pattern);
             patternLayout.activateOptions();
+            locationRequired = LOCATION_PATTERN.matcher(pattern).find();
+            mdcRequired = MDC_PATTERN.matcher(pattern).find();
         }
         int[] levels = {Level.TRACE_INT, Level.DEBUG_INT, Level.FATAL_INT, Level.INFO_INT, Level.WARN_INT, Level.ERROR_INT};
         for (int l : levels) {
@@ -230,9 +236,10 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
                     if (l < level) {
                         continue;
                     }
-                    messageHelper.writeTotalCounter(writer, System.currentTimeMillis(), new CounterWithSum(0, 0),
+                    messageHelper.writeTotalCounter(batch, clock.currentTimeMillis(), new CounterWithSum(0, 0),
                             Level.toLevel(l).toString());
                 }
+                batch.flush();
                 WritableByteChannel writerToCheck = writer;
                 if (writerToCheck instanceof LoggingWrapper) {
                     writerToCheck = ((LoggingWrapper) writerToCheck).getWrapped();
@@ -260,28 +267,54 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
 
     @Override
     public EventWrapper<LoggingEvent> createWrapper(LoggingEvent event, int lines) {
-        String message;
-        Object om = event.getMessage();
-        if (patternLayout == null) {
-            message = (om == null ? "" : om.toString());
-        } else {
-            message = patternLayout.format(event);
-        }
-        Hashtable mdcContext = MDC.getContext();
-        HashMap context = null;
-        if (mdcContext != null) {
-            context = new HashMap<String, String>();
-            for (Object o : mdcContext.keySet()) {
-                context.put(o.toString(), mdcContext.get(o.toString()));
+        if (seriesSenderConfig.isDeferMessageFormatting()) {
+            // capture the values log4j computes lazily from the logging thread, the message is rendered
+            // as log4j's AsyncAppender does, so later changes of a mutable message object are not shown
+            event.getRenderedMessage();
+            event.getThreadName();
+            event.getNDC();
+            if (mdcRequired) {
+                event.getMDCCopy();
+            }
+            if (locationRequired) {
+                event.getLocationInformation();
             }
+            return new EventWrapper<LoggingEvent>(event, lines, null, captureMdc(event));
+        }
+        return new EventWrapper<LoggingEvent>(event, lines, format(event), captureMdc(event));
+    }
+
+    private String[] captureMdc(LoggingEvent event) {
+        final String[] tags = mdcTags;
+        if (tags.length == 0) {
+            return null;
+        }
+        String[] values = new String[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            Object value = event.getMDC(tags[i]);
+            values[i] = value == null ? null : value.toString();
+        }
+        return values;
+    }
+
+    private String format(LoggingEvent event) {
+        if (patternLayout == null) {
+            String rendered = event.getRenderedMessage();
+            return rendered == null ? "" : rendered;
         }
-        return new EventWrapper<LoggingEvent>(event, lines, message, context);
+        return patternLayout.format(event);
     }
 
     public void addTag(Tag tag) {
         tags.put(tag.getName(), tag.getValue());
     }
 
+    @Override
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        messageHelper.setClock(clock);
+    }
+
     public void setEntity(String entity) {
         this.entity = entity;
     }
@@ -299,7 +332,10 @@ public class Log4jMessageWriter implements MessageWriter<LoggingEvent, String, S
     }
 
     public void addMdcTag(String mdcTag) {
-        mdcTags.add(mdcTag);
+        if (!Arrays.asList(mdcTags).contains(mdcTag)) {
+            mdcTags = Arrays.copyOf(mdcTags, mdcTags.length + 1);
+            mdcTags[mdcTags.length - 1] = mdcTag;
+        }
     }
 
     public void setMessageLength(int messageLength) {
@@ -15,46 +15,53 @@
 
 package com.axibase.tsd.collector.log4j;
 
-import com.axibase.tsd.collector.EventCounter;
-import com.axibase.tsd.collector.SimpleCounter;
-import com.axibase.tsd.collector.SyncEventCounter;
+import com.axibase.tsd.collector.LevelIndexedSyncCounter;
 import org.apache.log4j.Level;
 import org.apache.log4j.spi.LoggingEvent;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+class Log4jSyncCounter extends LevelIndexedSyncCounter<LoggingEvent, String> {
+    private static final Level[] LEVELS = {Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR, Level.FATAL};
+    private static final String[] LEVEL_NAMES = new String[LEVELS.length];
 
-class Log4jSyncCounter implements SyncEventCounter<LoggingEvent, String> {
-    private ConcurrentMap<String, AtomicLong> values = new ConcurrentHashMap<String, AtomicLong>();
+    static {
+        for (int i = 0; i < LEVELS.length; i++) {
+            LEVEL_NAMES[i] = LEVELS[i].toString();
+        }
+    }
+
+    Log4jSyncCounter() {
+        super(LEVEL_NAMES);
+    }
+
+    @Override
+    protected int levelIndex(LoggingEvent event) {
+        return indexOf(event.getLevel());
+    }
 
     @Override
-    public EventCounter<String> updateAndCreateDiff(EventCounter<String> lastCount) {
-        EventCounter<String> result = null;
-        for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
-            String key = entry.getKey();
-            AtomicLong cnt = entry.getValue();
-            long diff = lastCount.updateAndGetDiff(key, cnt.get());
-            if (diff > 0) {
-                if (result == null) {
-                    result = new SimpleCounter<String>();
-                }
-                result.updateAndGetDiff(key, diff);
+    protected String level(LoggingEvent event) {
+        return event.getLevel().toString();
+    }
+
+    static int levelCount() {
+        return LEVELS.length;
+    }
+
+    static int indexOf(Level level) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i] == level) {
+                return i;
             }
         }
-        return result;
+        return -1;
     }
 
-    @Override
-    public void increment(LoggingEvent event) {
-        Level level = event.getLevel();
-        AtomicLong count = values.get(level.toString());
-        if (count == null) {
-            count = new AtomicLong(0);
-            AtomicLong old = values.putIfAbsent(level.toString(), count);
-            count = old == null ? count : old;
+    static int indexOf(int intLevel) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].toInt() == intLevel) {
+                return i;
+            }
         }
-        count.incrementAndGet();
+        return -1;
     }
 }
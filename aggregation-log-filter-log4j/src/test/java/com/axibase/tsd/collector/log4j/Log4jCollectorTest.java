@@ -76,7 +76,7 @@ public class Log4jCollectorTest {
             assertFalse(result.contains("t:level=DEBUG"));
             // check series content
             assertTrue(result.contains("m:log_event_counter="));
-//            assertTrue(result.contains("m:log_event_total_rate="));
+            assertTrue(result.contains("m:log_event_total_rate="));
             assertTrue(result.contains("m:log_event_total_counter="));
         } finally {
             tcpReceiver.stop();
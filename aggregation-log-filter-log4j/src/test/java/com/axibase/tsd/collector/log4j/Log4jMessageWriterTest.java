@@ -19,6 +19,7 @@ import com.axibase.tsd.collector.*;
 import com.axibase.tsd.collector.config.SeriesSenderConfig;
 import com.axibase.tsd.collector.config.Tag;
 import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
 import org.apache.log4j.spi.LoggingEvent;
 import org.junit.Test;
 
@@ -29,6 +30,8 @@ import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class Log4jMessageWriterTest {
@@ -39,7 +42,7 @@ public class Log4jMessageWriterTest {
         Log4jMessageWriter messageBuilder = createMessageBuilder(catcher);
         Map<String, EventCounter<String>> events = new HashMap<String, EventCounter<String>>();
         events.put("test-logger", createCounter(100, Level.ERROR.toString()));
-        messageBuilder.writeStatMessages(catcher, events, 60000);
+        messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
         String result = catcher.sb.toString();
         System.out.println("result = " + result);
         assertTrue(result.substring(0, result.length()).contains(
@@ -58,7 +61,7 @@ public class Log4jMessageWriterTest {
             log4jMessageWriter.setSeriesSenderConfig(new SeriesSenderConfig(1, 30, -1));
             events.put("test-logger", createCounter(100, Level.ERROR.toString(), Level.WARN.toString(), Level.DEBUG.toString()));
 
-            log4jMessageWriter.writeStatMessages(catcher, events, 60000);
+            log4jMessageWriter.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result0 = " + result);
             assertTrue(
@@ -69,7 +72,7 @@ public class Log4jMessageWriterTest {
             assertTrue(result.contains("WARN"));
             assertTrue(result.contains("DEBUG"));
             assertTrue(result.contains("m:log_event_counter=100 "));
-//            assertTrue(result.contains("m:log_event_total_rate=100.0 "));
+            assertTrue(result.contains("m:log_event_total_rate=100.0 "));
             assertTrue(result.contains("m:log_event_total_counter=100 "));
         }
 
@@ -77,7 +80,7 @@ public class Log4jMessageWriterTest {
             catcher.clear();
             events.clear();
             events.put("test-logger", createCounter(1, Level.ERROR.toString()));
-            log4jMessageWriter.writeStatMessages(catcher, events, 60000);
+            log4jMessageWriter.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result1 = " + result);
             assertTrue(result.contains("ERROR"));
@@ -85,29 +88,29 @@ public class Log4jMessageWriterTest {
             assertTrue(result.contains("DEBUG"));
             assertTrue(result.contains("m:log_event_counter=100"));
             assertTrue(result.contains("m:log_event_counter=101"));
-//            assertTrue(result.contains("m:log_event_total_rate=0.0"));
-//            assertTrue(result.contains("m:log_event_total_rate=1.0"));
+            assertTrue(result.contains("m:log_event_total_rate=0.0"));
+            assertTrue(result.contains("m:log_event_total_rate=1.0"));
             assertTrue(result.contains("m:log_event_total_counter=100"));
             assertTrue(result.contains("m:log_event_total_counter=101"));
         }
         {
             catcher.clear();
             events.clear();
-            log4jMessageWriter.writeStatMessages(catcher, events, 60000);
+            log4jMessageWriter.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result2 = " + result);
             assertTrue(result.contains("ERROR"));
             assertTrue(result.contains("WARN"));
             assertTrue(result.contains("DEBUG"));
             assertTrue(result.contains("m:log_event_counter=101"));
-//            assertTrue(result.contains("m:log_event_total_rate=0"));
+            assertTrue(result.contains("m:log_event_total_rate=0"));
             assertTrue(result.contains("m:log_event_total_counter=100"));
             assertTrue(result.contains("m:log_event_total_counter=101"));
         }
         {
             catcher.clear();
             events.clear();
-            log4jMessageWriter.writeStatMessages(catcher, events, 60000);
+            log4jMessageWriter.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result3 = " + result);
             assertTrue(result.contains("ERROR"));
@@ -122,7 +125,7 @@ public class Log4jMessageWriterTest {
         StringsCatcher catcher = new StringsCatcher();
         Log4jMessageWriter messageBuilder = createMessageBuilder(catcher);
         LoggingEvent event = Log4jUtils.createLoggingEvent(Level.ERROR, "test-logger", "test-message", "test-thread");
-        messageBuilder.writeSingles(catcher, createSingles(event, 0));
+        messageBuilder.writeSingle(catcher, createSingle(event, 0));
         String result = catcher.sb.toString();
         assertTrue(result.substring(0, result.length()).contains(
                 "t:ttt1=vvv1 t:ttt2=vvv2 t:type=logger m:test-message t:severity=ERROR t:level=ERROR t:source=test-logger"));
@@ -133,7 +136,7 @@ public class Log4jMessageWriterTest {
         Log4jMessageWriter messageBuilder = createMessageBuilder(catcher);
         LoggingEvent event = Log4jUtils.createLoggingEvent(Level.ERROR, "test-logger", "test-message", "test-thread",
                 new NullPointerException("test"));
-        messageBuilder.writeSingles(catcher, createSingles(event, 10));
+        messageBuilder.writeSingle(catcher, createSingle(event, 10));
         String result = catcher.sb.toString();
         System.out.println("result = " + result);
         final String text = "t:ttt1=vvv1 t:ttt2=vvv2 t:type=logger m:\"test-message\n" +
@@ -143,10 +146,29 @@ public class Log4jMessageWriterTest {
         assertTrue(result, result.contains(text));
     }
 
-    private CountedQueue<EventWrapper<LoggingEvent>> createSingles(LoggingEvent event, int lines) {
-        CountedQueue<EventWrapper<LoggingEvent>> singles = new CountedQueue<EventWrapper<LoggingEvent>>();
-        singles.add(new EventWrapper<LoggingEvent>(event, lines, event.getRenderedMessage(),null));
-        return singles;
+    @Test
+    public void testDeferredFormatting() throws Exception {
+        StringsCatcher catcher = new StringsCatcher();
+        Log4jMessageWriter messageBuilder = createMessageBuilder(catcher);
+        SeriesSenderConfig seriesSenderConfig = new SeriesSenderConfig();
+        seriesSenderConfig.setDeferMessageFormatting(true);
+        messageBuilder.setSeriesSenderConfig(seriesSenderConfig);
+        StringBuilder message = new StringBuilder("value-42");
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), Logger.getLogger("test-logger"), Level.WARN,
+                message, null);
+        EventWrapper<LoggingEvent> wrapper = messageBuilder.createWrapper(event, 0);
+        assertNull(wrapper.getMessage());
+        // the message object is changed after the logging call
+        message.setLength(0);
+        message.append("value-43");
+
+        messageBuilder.writeSingle(catcher, wrapper);
+        String result = catcher.sb.toString();
+        assertTrue(result, result.contains("m:value-42 t:severity=WARN t:level=WARN t:source=test-logger"));
+    }
+
+    private EventWrapper<LoggingEvent> createSingle(LoggingEvent event, int lines) {
+        return new EventWrapper<LoggingEvent>(event, lines, event.getRenderedMessage(),null);
     }
 
     private Log4jMessageWriter createMessageBuilder(WritableByteChannel writer) {
@@ -168,6 +190,9 @@ public class Log4jMessageWriterTest {
         return simpleCounter;
     }
 
+    /**
+     * Message object which records the thread rendering it.
+     */
     private static class StringsCatcher implements WritableByteChannel {
         private StringBuilder sb = new StringBuilder();
 
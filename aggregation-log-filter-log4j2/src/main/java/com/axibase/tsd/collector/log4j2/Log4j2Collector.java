@@ -19,14 +19,23 @@ import com.axibase.tsd.collector.Aggregator;
 import com.axibase.tsd.collector.AtsdUtil;
 import com.axibase.tsd.collector.config.SeriesSenderConfig;
 import com.axibase.tsd.collector.config.Tag;
+import com.axibase.tsd.collector.config.WriterConfig;
 import com.axibase.tsd.collector.writer.*;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.filter.AbstractFilter;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.MessageFactory;
+import org.apache.logging.log4j.message.ParameterizedMessageFactory;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.message.ReusableMessageFactory;
 import java.io.IOException;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
@@ -36,6 +45,18 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static com.axibase.tsd.collector.config.SeriesSenderConfig.DEFAULT_SEND_LOGGER_COUNTER;
+import static com.axibase.tsd.collector.config.WriterConfig.DEFAULT_HTTP_BATCH;
+import static com.axibase.tsd.collector.config.WriterConfig.DEFAULT_MAX_BATCH_SIZE;
+import static com.axibase.tsd.collector.config.SeriesSenderConfig.DEFAULT_URGENT_ENQUEUE_TIMEOUT_MS;
+import static com.axibase.tsd.collector.config.SeriesSenderConfig.DEFAULT_DEFER_MESSAGE_FORMATTING;
+import static com.axibase.tsd.collector.config.SeriesSenderConfig.DEFAULT_RATE_INTERVAL_SECONDS;
+import static com.axibase.tsd.collector.config.WriterConfig.DEFAULT_HTTP_GZIP;
+import static com.axibase.tsd.collector.config.WriterConfig.DEFAULT_GZIP_MIN_SIZE;
+import static com.axibase.tsd.collector.config.WriterConfig.DEFAULT_TCP_NON_BLOCKING;
+import static com.axibase.tsd.collector.config.WriterConfig.DEFAULT_TCP_QUEUE_SIZE;
+import static com.axibase.tsd.collector.config.WriterConfig.DEFAULT_UDP_PAYLOAD_SIZE;
+import static com.axibase.tsd.collector.config.WriterConfig.DEFAULT_SPOOL_MAX_SIZE;
+import static com.axibase.tsd.collector.config.WriterConfig.DEFAULT_SPOOL_REPLAY_RATE;
 
 @Plugin(name = "Collector", category = "Core", elementType = "filter", printObject = true)
 public class Log4j2Collector extends AbstractFilter {
@@ -43,10 +64,15 @@ public class Log4j2Collector extends AbstractFilter {
     private final List<Log4j2EventTrigger> triggers = new ArrayList<>();
     private Log4j2MessageWriter messageBuilder;
     private SeriesSenderConfig seriesSenderConfig;
+    private WriterConfig writerConfig;
     private WritableByteChannel writer;
     private static final int DEFAULT_INTERVAL = 60;
     private static final String DEFAULT_PATTERN = "%m";
     private static final String DEFAULT_MESSAGE_LENGTH = "-1";
+    // logging APIs and bridges between the application and the filter
+    private static final String[] LOGGING_PACKAGES = {
+            "org.apache.logging.", "org.slf4j.", "org.apache.commons.logging.", "java.util.logging.", "org.jboss.logging."
+    };
     /**
      * Settings from log4j2 file.
      */
@@ -61,6 +87,21 @@ public class Log4j2Collector extends AbstractFilter {
     private String debug;
     private String pattern;
     private String messageLength;
+    private Integer urgentEnqueueTimeoutMs;
+    private Boolean deferMessageFormatting;
+    private Integer rateIntervalSeconds;
+    // writer
+    private Boolean httpBatch;
+    private Integer maxBatchSize;
+    private Boolean httpGzip;
+    private Integer gzipMinSize;
+    private Boolean tcpNonBlocking;
+    private Integer tcpQueueSize;
+    private Integer udpPayloadSize;
+    private String spoolDirectory;
+    private Long spoolMaxSize;
+    private Long spoolReplayRate;
+    private String endpointWeights;
     // tags
     private final List<Tag> tags = new ArrayList<>();
     private final List<String> mdcTags = new ArrayList<>();
@@ -69,9 +110,14 @@ public class Log4j2Collector extends AbstractFilter {
         return writer;
     }
 
+    void setAggregator(Aggregator<LogEvent, String, String> aggregator) {
+        this.aggregator = aggregator;
+    }
+
     public void init() throws Exception {
         initSeriesSenderConfig();
-        writer = AtsdWriterFactory.getWriter(url, ignoreSslErrors);
+        initWriterConfig();
+        writer = AtsdWriterFactory.getWriter(url, ignoreSslErrors, writerConfig);
         messageBuilder = new Log4j2MessageWriter();
         messageBuilder.setAtsdUrl(url);
         if (entity != null) {
@@ -93,6 +139,7 @@ public class Log4j2Collector extends AbstractFilter {
         aggregator = new Aggregator<>(messageBuilder, new Log4j2EventProcessor());
         writer = LoggingWrapper.tryWrap(debug, writer);
         aggregator.setWriter(writer);
+        aggregator.setWriterConfig(writerConfig);
         if (seriesSenderConfig != null) {
             aggregator.setSeriesSenderConfig(seriesSenderConfig);
         }
@@ -130,7 +177,21 @@ public class Log4j2Collector extends AbstractFilter {
             @PluginAttribute(value = "pattern", defaultString = DEFAULT_PATTERN) final String pattern,
             @PluginAttribute(value = "messageLength", defaultString = DEFAULT_MESSAGE_LENGTH) final String messageLength,
             @PluginAttribute(value = "debug", defaultString = "false") final String debug,
-            @PluginAttribute(value = "ignoreSslErrors", defaultString = "true") final String ignoreSslErrors) {
+            @PluginAttribute(value = "ignoreSslErrors", defaultString = "true") final String ignoreSslErrors,
+            @PluginAttribute(value = "httpBatch", defaultBoolean = DEFAULT_HTTP_BATCH) final boolean httpBatch,
+            @PluginAttribute(value = "maxBatchSize", defaultInt = DEFAULT_MAX_BATCH_SIZE) final int maxBatchSize,
+            @PluginAttribute(value = "urgentEnqueueTimeoutMs", defaultInt = DEFAULT_URGENT_ENQUEUE_TIMEOUT_MS) final int urgentEnqueueTimeoutMs,
+            @PluginAttribute(value = "deferMessageFormatting", defaultBoolean = DEFAULT_DEFER_MESSAGE_FORMATTING) final boolean deferMessageFormatting,
+            @PluginAttribute(value = "rateIntervalSeconds", defaultInt = DEFAULT_RATE_INTERVAL_SECONDS) final int rateIntervalSeconds,
+            @PluginAttribute(value = "httpGzip", defaultBoolean = DEFAULT_HTTP_GZIP) final boolean httpGzip,
+            @PluginAttribute(value = "gzipMinSize", defaultInt = DEFAULT_GZIP_MIN_SIZE) final int gzipMinSize,
+            @PluginAttribute(value = "tcpNonBlocking", defaultBoolean = DEFAULT_TCP_NON_BLOCKING) final boolean tcpNonBlocking,
+            @PluginAttribute(value = "tcpQueueSize", defaultInt = DEFAULT_TCP_QUEUE_SIZE) final int tcpQueueSize,
+            @PluginAttribute(value = "udpPayloadSize", defaultInt = DEFAULT_UDP_PAYLOAD_SIZE) final int udpPayloadSize,
+            @PluginAttribute("spoolDirectory") final String spoolDirectory,
+            @PluginAttribute(value = "spoolMaxSize", defaultLong = DEFAULT_SPOOL_MAX_SIZE) final long spoolMaxSize,
+            @PluginAttribute(value = "spoolReplayRate", defaultLong = DEFAULT_SPOOL_REPLAY_RATE) final long spoolReplayRate,
+            @PluginAttribute("endpointWeights") final String endpointWeights) {
         final Level minLevel = (level == null) ? Level.TRACE : level;
         final Log4j2Collector collector = new Log4j2Collector();
         collector.setEntity(entity);
@@ -149,6 +210,20 @@ public class Log4j2Collector extends AbstractFilter {
             collector.setIntervalSeconds(intervalSeconds);
         }
         collector.setSendLoggerCounter(sendLoggerCounter);
+        collector.setHttpBatch(httpBatch);
+        collector.setMaxBatchSize(maxBatchSize);
+        collector.setUrgentEnqueueTimeoutMs(urgentEnqueueTimeoutMs);
+        collector.setDeferMessageFormatting(deferMessageFormatting);
+        collector.setRateIntervalSeconds(rateIntervalSeconds);
+        collector.setHttpGzip(httpGzip);
+        collector.setGzipMinSize(gzipMinSize);
+        collector.setTcpNonBlocking(tcpNonBlocking);
+        collector.setTcpQueueSize(tcpQueueSize);
+        collector.setUdpPayloadSize(udpPayloadSize);
+        collector.setSpoolDirectory(spoolDirectory);
+        collector.setSpoolMaxSize(spoolMaxSize);
+        collector.setSpoolReplayRate(spoolReplayRate);
+        collector.setEndpointWeights(endpointWeights);
         try {
             collector.init();
         } catch (Exception e) {
@@ -165,6 +240,52 @@ public class Log4j2Collector extends AbstractFilter {
         if (sendLoggerCounter != null) {
             seriesSenderConfig.setSendLoggerCounter(sendLoggerCounter);
         }
+        if (urgentEnqueueTimeoutMs != null) {
+            seriesSenderConfig.setUrgentEnqueueTimeoutMs(urgentEnqueueTimeoutMs);
+        }
+        if (deferMessageFormatting != null) {
+            seriesSenderConfig.setDeferMessageFormatting(deferMessageFormatting);
+        }
+        if (rateIntervalSeconds != null) {
+            seriesSenderConfig.setRateIntervalSeconds(rateIntervalSeconds);
+        }
+    }
+
+    private void initWriterConfig() {
+        writerConfig = new WriterConfig();
+        if (httpBatch != null) {
+            writerConfig.setHttpBatch(httpBatch);
+        }
+        if (maxBatchSize != null) {
+            writerConfig.setMaxBatchSize(maxBatchSize);
+        }
+        if (httpGzip != null) {
+            writerConfig.setHttpGzip(httpGzip);
+        }
+        if (gzipMinSize != null) {
+            writerConfig.setGzipMinSize(gzipMinSize);
+        }
+        if (tcpNonBlocking != null) {
+            writerConfig.setTcpNonBlocking(tcpNonBlocking);
+        }
+        if (tcpQueueSize != null) {
+            writerConfig.setTcpQueueSize(tcpQueueSize);
+        }
+        if (udpPayloadSize != null) {
+            writerConfig.setUdpPayloadSize(udpPayloadSize);
+        }
+        if (spoolDirectory != null) {
+            writerConfig.setSpoolDirectory(spoolDirectory);
+        }
+        if (spoolMaxSize != null) {
+            writerConfig.setSpoolMaxSize(spoolMaxSize);
+        }
+        if (spoolReplayRate != null) {
+            writerConfig.setSpoolReplayRate(spoolReplayRate);
+        }
+        if (endpointWeights != null) {
+            writerConfig.setEndpointWeights(endpointWeights);
+        }
     }
 
     public void setUrl(String atsdUrl) {
@@ -226,6 +347,9 @@ public class Log4j2Collector extends AbstractFilter {
                     if (vParts.length >= 2) {
                         trigger.setSendMultiplier(Double.parseDouble(vParts[1]));
                     }
+                    if (vParts.length >= 3) {
+                        trigger.setHistoryCapacity(Integer.parseInt(vParts[2]));
+                    }
                 }
                 trigger.init();
                 triggers.add(trigger);
@@ -259,10 +383,256 @@ public class Log4j2Collector extends AbstractFilter {
         return Result.NEUTRAL;
     }
 
+    // Pre-event filter methods, called when the collector is configured as a context-wide filter.
+    // Events are counted without creating a LogEvent, which is built only for sampled messages.
+    // Calls with a null message come from Logger.isEnabled checks and are not counted.
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Message msg, Throwable t) {
+        if (countAndSample(logger, level, msg, t != null ? t : msg == null ? null : msg.getThrowable())) {
+            send(logger, level, marker, msg instanceof ReusableMessage ? ((ReusableMessage) msg).memento() : msg, t);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Object msg, Throwable t) {
+        if (countAndSample(logger, level, msg, t)) {
+            send(logger, level, marker, messageFactory(logger).newMessage(msg), t);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object... params) {
+        if (countAndSample(logger, level, msg, params == null || params.length == 0 ? null : params[params.length - 1])) {
+            send(logger, level, marker, newMessage(logger, msg, params), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0) {
+        if (countAndSample(logger, level, msg, p0)) {
+            send(logger, level, marker, newMessage(logger, msg, p0), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1) {
+        if (countAndSample(logger, level, msg, p1)) {
+            send(logger, level, marker, newMessage(logger, msg, p0, p1), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2) {
+        if (countAndSample(logger, level, msg, p2)) {
+            send(logger, level, marker, newMessage(logger, msg, p0, p1, p2), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2, Object p3) {
+        if (countAndSample(logger, level, msg, p3)) {
+            send(logger, level, marker, newMessage(logger, msg, p0, p1, p2, p3), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2, Object p3, Object p4) {
+        if (countAndSample(logger, level, msg, p4)) {
+            send(logger, level, marker, newMessage(logger, msg, p0, p1, p2, p3, p4), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5) {
+        if (countAndSample(logger, level, msg, p5)) {
+            send(logger, level, marker, newMessage(logger, msg, p0, p1, p2, p3, p4, p5), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6) {
+        if (countAndSample(logger, level, msg, p6)) {
+            send(logger, level, marker, newMessage(logger, msg, p0, p1, p2, p3, p4, p5, p6), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7) {
+        if (countAndSample(logger, level, msg, p7)) {
+            send(logger, level, marker, newMessage(logger, msg, p0, p1, p2, p3, p4, p5, p6, p7), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7, Object p8) {
+        if (countAndSample(logger, level, msg, p8)) {
+            send(logger, level, marker, newMessage(logger, msg, p0, p1, p2, p3, p4, p5, p6, p7, p8), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7, Object p8, Object p9) {
+        if (countAndSample(logger, level, msg, p9)) {
+            send(logger, level, marker, newMessage(logger, msg, p0, p1, p2, p3, p4, p5, p6, p7, p8, p9), null);
+        }
+        return Result.NEUTRAL;
+    }
+
+    /**
+     * Counts the event and returns true if a LogEvent should be created for it.
+     *
+     * @param lastParam the last message parameter or the throwable, checked for an instance of Error
+     */
+    private boolean countAndSample(Logger logger, Level level, Object msg, Object lastParam) {
+        if (msg == null || aggregator == null || level.intLevel() > this.level.intLevel()
+                || !level.isMoreSpecificThan(logger.getLevel())) {
+            return false;
+        }
+        final int levelIndex = Log4j2SyncCounter.indexOf(level);
+        if (levelIndex < 0) {
+            // custom levels are counted with the created event
+            return true;
+        }
+        final int loggerId = aggregator.count(logger.getName(), levelIndex);
+        return lastParam instanceof Throwable && Log4j2EventTrigger.isErrorInstance(level, (Throwable) lastParam)
+                || aggregator.sample(loggerId, levelIndex);
+    }
+
+    private void send(Logger logger, Level level, Marker marker, Message message, Throwable t) {
+        // the caller is resolved while still in the logging thread
+        final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+        final int callerIndex = callerIndex(stackTrace);
+        final LogEvent event = Log4jLogEvent.newBuilder()
+                .setLoggerName(logger.getName())
+                .setLoggerFqcn(callerIndex > 0 ? stackTrace[callerIndex - 1].getClassName() : null)
+                .setLevel(level)
+                .setMarker(marker)
+                .setMessage(message)
+                .setThrown(t != null ? t : message.getThrowable())
+                .setIncludeLocation(true)
+                .setSource(callerIndex >= 0 ? stackTrace[callerIndex] : null)
+                .build();
+        final int levelIndex = Log4j2SyncCounter.indexOf(level);
+        try {
+            if (levelIndex < 0) {
+                aggregator.register(event);
+            } else {
+                aggregator.send(event, levelIndex);
+            }
+        } catch (IOException e) {
+            AtsdUtil.logError("Could not register event. " + e);
+        }
+    }
+
+    /**
+     * @return index of the first frame below the collector and the logging API or bridge the application called,
+     * such as log4j-api or log4j-slf4j-impl, or -1 if there is no such frame
+     */
+    static int callerIndex(StackTraceElement[] stackTrace) {
+        for (int i = 0; i < stackTrace.length; i++) {
+            final String className = stackTrace[i].getClassName();
+            if (!className.equals(Log4j2Collector.class.getName()) && !isLoggingClass(className)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isLoggingClass(String className) {
+        for (String loggingPackage : LOGGING_PACKAGES) {
+            if (className.startsWith(loggingPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MessageFactory messageFactory(Logger logger) {
+        final MessageFactory messageFactory = logger.getMessageFactory();
+        if (messageFactory instanceof ReusableMessageFactory) {
+            // reusable messages belong to the logging call that follows the filter
+            return ParameterizedMessageFactory.INSTANCE;
+        }
+        return messageFactory;
+    }
+
+    private static Message newMessage(Logger logger, String msg, Object... params) {
+        return messageFactory(logger).newMessage(msg, params);
+    }
+
     public void setIgnoreSslErrors(String ignoreSslErrors) {
         this.ignoreSslErrors = ignoreSslErrors;
     }
 
+    public void setHttpBatch(boolean httpBatch) {
+        this.httpBatch = httpBatch;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setUrgentEnqueueTimeoutMs(int urgentEnqueueTimeoutMs) {
+        this.urgentEnqueueTimeoutMs = urgentEnqueueTimeoutMs;
+    }
+
+    public void setDeferMessageFormatting(boolean deferMessageFormatting) {
+        this.deferMessageFormatting = deferMessageFormatting;
+    }
+
+    public void setRateIntervalSeconds(int rateIntervalSeconds) {
+        this.rateIntervalSeconds = rateIntervalSeconds;
+    }
+
+    public void setHttpGzip(boolean httpGzip) {
+        this.httpGzip = httpGzip;
+    }
+
+    public void setGzipMinSize(int gzipMinSize) {
+        this.gzipMinSize = gzipMinSize;
+    }
+
+    public void setTcpNonBlocking(boolean tcpNonBlocking) {
+        this.tcpNonBlocking = tcpNonBlocking;
+    }
+
+    public void setTcpQueueSize(int tcpQueueSize) {
+        this.tcpQueueSize = tcpQueueSize;
+    }
+
+    public void setUdpPayloadSize(int udpPayloadSize) {
+        this.udpPayloadSize = udpPayloadSize;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    public void setSpoolReplayRate(long spoolReplayRate) {
+        this.spoolReplayRate = spoolReplayRate;
+    }
+
+    public void setEndpointWeights(String endpointWeights) {
+        this.endpointWeights = endpointWeights;
+    }
+
     @Override
     public boolean stop(long timeout, TimeUnit timeUnit) {
         if (aggregator != null) {
@@ -291,6 +661,20 @@ public class Log4j2Collector extends AbstractFilter {
                 ", debug='" + debug + '\'' +
                 ", pattern='" + pattern + '\'' +
                 ", ignoreSslErrors='" + ignoreSslErrors + '\'' +
+                ", httpBatch=" + httpBatch +
+                ", maxBatchSize=" + maxBatchSize +
+                ", urgentEnqueueTimeoutMs=" + urgentEnqueueTimeoutMs +
+                ", deferMessageFormatting=" + deferMessageFormatting +
+                ", rateIntervalSeconds=" + rateIntervalSeconds +
+                ", httpGzip=" + httpGzip +
+                ", gzipMinSize=" + gzipMinSize +
+                ", tcpNonBlocking=" + tcpNonBlocking +
+                ", tcpQueueSize=" + tcpQueueSize +
+                ", udpPayloadSize=" + udpPayloadSize +
+                ", spoolDirectory=" + spoolDirectory +
+                ", spoolMaxSize=" + spoolMaxSize +
+                ", spoolReplayRate=" + spoolReplayRate +
+                ", endpointWeights=" + endpointWeights +
                 '}';
     }
 }
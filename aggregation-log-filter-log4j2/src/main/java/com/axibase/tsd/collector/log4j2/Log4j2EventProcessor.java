@@ -37,4 +37,19 @@ public class Log4j2EventProcessor
     public String extractKey(LogEvent event) {
         return event.getLoggerName();
     }
+
+    @Override
+    public int levelCount() {
+        return Log4j2SyncCounter.levelCount();
+    }
+
+    @Override
+    public int levelIndex(LogEvent event) {
+        return Log4j2SyncCounter.indexOf(event.getLevel());
+    }
+
+    @Override
+    public int levelIndex(int intLevel) {
+        return Log4j2SyncCounter.indexOf(intLevel);
+    }
 }
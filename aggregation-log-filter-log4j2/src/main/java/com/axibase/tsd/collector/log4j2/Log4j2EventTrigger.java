@@ -35,12 +35,16 @@ public class Log4j2EventTrigger extends SendMessageTrigger<LogEvent> {
     }
 
     @Override
-    public boolean onEvent(LogEvent event) {
-        return event != null && event.getLevel().intLevel() == level.intLevel() && super.onEvent(event);
+    protected boolean accept(LogEvent event) {
+        return event != null && event.getLevel().intLevel() == level.intLevel();
     }
 
     public static boolean isErrorInstance(LogEvent event) {
-        return (event.getLevel().intLevel() == Level.ERROR.intLevel() && event.getThrown() instanceof Error);
+        return isErrorInstance(event.getLevel(), event.getThrown());
+    }
+
+    static boolean isErrorInstance(Level level, Throwable thrown) {
+        return (level.intLevel() == Level.ERROR.intLevel() && thrown instanceof Error);
     }
 
     @Override
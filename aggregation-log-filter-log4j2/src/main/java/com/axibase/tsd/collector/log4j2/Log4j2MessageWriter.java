@@ -18,18 +18,24 @@ package com.axibase.tsd.collector.log4j2;
 import com.axibase.tsd.collector.*;
 import com.axibase.tsd.collector.config.SeriesSenderConfig;
 import com.axibase.tsd.collector.config.Tag;
+import com.axibase.tsd.collector.config.WriterConfig;
 import com.axibase.tsd.collector.writer.BaseHttpAtsdWriter;
+import com.axibase.tsd.collector.writer.Batch;
 import com.axibase.tsd.collector.writer.LoggingWrapper;
 import com.axibase.tsd.collector.writer.TcpAtsdWriter;
 import org.apache.logging.log4j.Level;
-import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
 import org.apache.logging.log4j.core.impl.ThrowableProxy;
 import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.apache.logging.log4j.core.pattern.LogEventPatternConverter;
 import org.apache.logging.log4j.core.pattern.PatternFormatter;
 import org.apache.logging.log4j.core.pattern.PatternParser;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
 
 import java.io.IOException;
 import java.nio.channels.WritableByteChannel;
@@ -42,16 +48,19 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
     private SeriesSenderConfig seriesSenderConfig = SeriesSenderConfig.DEFAULT;
     private final Map<String, CounterWithSum> totals = new HashMap<String, CounterWithSum>();
     private MessageHelper messageHelper = new MessageHelper();
+    private Clock clock = CachedClock.INSTANCE;
     private String pattern;
     private String atsdUrl;
     private PatternFormatter[] formatters;
-    private Set<String> mdcTags = new HashSet<>();
+    private boolean locationRequired;
+    private String[] mdcTags = new String[0];
     private int messageLength = -1;
 
     @Override
     public synchronized void writeStatMessages(WritableByteChannel writer,
                                                Map<String, EventCounter<String>> diff,
-                                               long deltaTime) throws IOException {
+                                               long deltaTime,
+                                               long time) throws IOException {
         if (deltaTime < 1) {
             throw new IllegalArgumentException("Illegal delta time value: " + deltaTime);
         }
@@ -78,7 +87,6 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
             }
         }
 
-        long time = System.currentTimeMillis();
 
         // compose & clean
         for (Map.Entry<LoggerAndLevel<String>, CounterWithSum> entry : loggerEventHistory.entrySet()) {
@@ -92,7 +100,7 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
                 counter.clean();
                 try {
                     if (seriesSenderConfig.isSendLoggerCounter()) {
-                        messageHelper.writeCounter(writer, key, level, counter.getSum());
+                        messageHelper.writeCounter(writer, time, key, level, counter.getSum());
                     }
                 } catch (Exception e) {
                     AtsdUtil.logError("Could not write log_event_counter series " + atsdUrl + " - " + e.getMessage());
@@ -116,11 +124,15 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
             String level = entry.getKey();
             CounterWithSum counterWithSum = entry.getValue();
             try {
+                long delta = counterWithSum.getValue();
                 counterWithSum.clean();
                 // write total count
                 messageHelper.writeTotalCounter(writer, time, counterWithSum, level);
+                // write rate normalized to the rate interval
+                messageHelper.writeTotalRate(writer, time,
+                        (double) delta * seriesSenderConfig.getRateIntervalMs() / deltaTime, level);
             } catch (Exception e) {
-                AtsdUtil.logError("Could not write log_event_total_counter series " + atsdUrl + " - " + e.getMessage());
+                AtsdUtil.logError("Could not write log_event_total series " + atsdUrl + " - " + e.getMessage());
             } finally {
 //                entry.getValue().decrementZeroRepeats();
             }
@@ -128,19 +140,14 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
     }
 
     @Override
-    public void writeSingles(WritableByteChannel writer,
-                             CountedQueue<EventWrapper<LogEvent>> singles) throws IOException {
-        EventWrapper<LogEvent> wrapper;
-        while ((wrapper = singles.poll()) != null) {
-            writeSingle(writer, wrapper);
-        }
-    }
-
-    private void writeSingle(WritableByteChannel writer, EventWrapper<LogEvent> wrapper) {
+    public void writeSingle(WritableByteChannel writer, EventWrapper<LogEvent> wrapper) {
         try {
             LogEvent event = wrapper.getEvent();
             StringBuilder sb = new StringBuilder();
             String message = wrapper.getMessage();
+            if (message == null) {
+                message = format(event);
+            }
             if (messageLength >= 0)
                 message = message.substring(0, Math.min(message.length(), messageLength));
             int lines = wrapper.getLines();
@@ -159,25 +166,21 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
                 }
                 message = msb.toString();
             }
-            writeMessage(writer, event, sb, message, wrapper.getContext());
+            writeMessage(writer, event, sb, message, wrapper.getMdcValues());
         } catch (Exception e) {
             AtsdUtil.logError("Could not write message " + atsdUrl);
         }
     }
 
     @Override
-    public boolean sendErrorInstance(WritableByteChannel writableByteChannel, LogEvent logEvent) {
-        if (Log4j2EventTrigger.isErrorInstance(logEvent)) {
-            writeSingle(writableByteChannel, createWrapper(logEvent, Integer.MAX_VALUE));
-            return true;
-        }
-        return false;
+    public boolean isErrorInstance(LogEvent event) {
+        return Log4j2EventTrigger.isErrorInstance(event);
     }
 
     private void writeMessage(WritableByteChannel writer,
                               LogEvent event,
                               StringBuilder sb,
-                              String message, Map context) throws IOException {
+                              String message, String[] mdcValues) throws IOException {
         final String levelValue = event.getLevel().toString();
         final String loggerName = event.getLoggerName();
         StackTraceElement source = event.getSource();
@@ -187,14 +190,13 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
             locationMap.put("line", String.valueOf(source.getLineNumber()));
             locationMap.put("method", source.getMethodName());
         }
-        if (context != null && mdcTags.size() > 0) {
-            Set keySet = context.keySet();
-            for (String mdcTag : mdcTags) {
-                if (keySet.contains(mdcTag))
-                    locationMap.put(mdcTag, (String) context.get(mdcTag));
+        if (mdcValues != null) {
+            for (int i = 0; i < mdcValues.length; i++) {
+                if (mdcValues[i] != null)
+                    locationMap.put(mdcTags[i], mdcValues[i]);
             }
         }
-        messageHelper.writeMessage(writer, sb, message, levelValue, loggerName, locationMap);
+        messageHelper.writeMessage(writer, event.getTimeMillis(), sb, message, levelValue, loggerName, locationMap);
     }
 
     @Override
@@ -226,12 +228,17 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
         stringSettings.put("level", curLevel.toString());
         stringSettings.put("intervalSeconds", intervalSeconds + "");
         stringSettings.put("framework", "log4j2");
-        messageHelper.init(writer, stringSettings);
+        // the commands written on start are sent in one batch before the status of the writer is checked
+        final Batch batch = writer == null ? null : new Batch(writer, WriterConfig.DEFAULT_MAX_BATCH_SIZE);
+        messageHelper.init(batch, stringSettings);
 
         if (pattern != null) {
             final PatternParser patternParser = new PatternParser(null, PatternLayout.KEY,
                     LogEventPatternConverter.class);
             formatters = patternParser.parse(pattern).toArray(new PatternFormatter[0]);
+            for (PatternFormatter formatter : formatters) {
+                locationRequired |= formatter.requiresLocation();
+            }
         }
         for (Level l : levels) {
             if (l.intLevel() > level)
@@ -244,8 +251,9 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
                 for (Level l : levels) {
                     if (l.intLevel() > level)
                         continue;
-                    messageHelper.writeTotalCounter(writer, System.currentTimeMillis(), new CounterWithSum(0, 0), l.toString());
+                    messageHelper.writeTotalCounter(batch, clock.currentTimeMillis(), new CounterWithSum(0, 0), l.toString());
                 }
+                batch.flush();
                 WritableByteChannel writerToCheck = writer;
                 if (writerToCheck instanceof LoggingWrapper) {
                     writerToCheck = ((LoggingWrapper) writerToCheck).getWrapped();
@@ -273,24 +281,79 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
 
     @Override
     public EventWrapper<LogEvent> createWrapper(LogEvent event, int lines) {
-        event = event.toImmutable();
-        final String message;
-        if (formatters == null) {
-            message = Objects.toString(event.getMessage(), "");
-        } else {
-            final StringBuilder sb = new StringBuilder();
-            for (PatternFormatter formatter : formatters) {
-                formatter.format(event, sb);
+        event = snapshot(event);
+        // the thread name is computed lazily from the current thread
+        event.getThreadName();
+        if (seriesSenderConfig.isDeferMessageFormatting()) {
+            // capture the values log4j2 computes lazily from the logging thread
+            if (locationRequired) {
+                event.getSource();
             }
-            message = sb.toString();
+            return new EventWrapper<>(event, lines, null, captureMdc(event));
+        }
+        return new EventWrapper<>(event, lines, format(event), captureMdc(event));
+    }
+
+    /**
+     * Copies the event if log4j2 reuses it or its message after the logging call. A reusable message is replaced
+     * with its memento, which is formatted by the sender instead of the logging thread.
+     */
+    private static LogEvent snapshot(LogEvent event) {
+        if (event instanceof MutableLogEvent) {
+            // the message text of a mutable event is already formatted by log4j2
+            return event.toImmutable();
+        }
+        Message message = event.getMessage();
+        if (message instanceof ReusableMessage) {
+            message = ((ReusableMessage) message).memento();
+            event = new Log4jLogEvent.Builder(event).setMessage(message).build();
+        }
+        if (message != null) {
+            // formatted on the logging thread, as log4j2 does before asynchronous logging,
+            // so later changes of mutable parameters are not shown
+            message.getFormattedMessage();
         }
-        return new EventWrapper<>(event, lines, message, ThreadContext.getContext());
+        return event;
+    }
+
+    private String[] captureMdc(LogEvent event) {
+        final String[] tags = mdcTags;
+        if (tags.length == 0) {
+            return null;
+        }
+        ReadOnlyStringMap contextData = event.getContextData();
+        if (contextData == null || contextData.isEmpty()) {
+            return null;
+        }
+        String[] values = new String[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            Object value = contextData.getValue(tags[i]);
+            values[i] = value == null ? null : value.toString();
+        }
+        return values;
+    }
+
+    private String format(LogEvent event) {
+        if (formatters == null) {
+            return Objects.toString(event.getMessage(), "");
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (PatternFormatter formatter : formatters) {
+            formatter.format(event, sb);
+        }
+        return sb.toString();
     }
 
     public void addTag(Tag tag) {
         tags.put(tag.getName(), tag.getValue());
     }
 
+    @Override
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        messageHelper.setClock(clock);
+    }
+
     public void setEntity(String entity) {
         this.entity = entity;
     }
@@ -308,7 +371,10 @@ public class Log4j2MessageWriter implements MessageWriter<LogEvent, String, Stri
     }
 
     public void addMdcTag(String mdcTag) {
-        mdcTags.add(mdcTag);
+        if (!Arrays.asList(mdcTags).contains(mdcTag)) {
+            mdcTags = Arrays.copyOf(mdcTags, mdcTags.length + 1);
+            mdcTags[mdcTags.length - 1] = mdcTag;
+        }
     }
 
     public void setMessageLength(String messageLength) {
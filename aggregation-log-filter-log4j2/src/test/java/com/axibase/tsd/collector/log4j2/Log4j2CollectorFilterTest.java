@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.axibase.tsd.collector.log4j2;
+
+import com.axibase.tsd.collector.Aggregator;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.spi.AbstractLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Log4j2CollectorFilterTest {
+    private final RecordingAggregator aggregator = new RecordingAggregator();
+    private final Log4j2Collector collector = new Log4j2Collector();
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        collector.setLevel(Level.TRACE);
+        collector.setAggregator(aggregator);
+        logger = (Logger) LogManager.getLogger("com.axibase.tsd.collector.log4j2.filter-test");
+        logger.setLevel(Level.INFO);
+    }
+
+    @After
+    public void tearDown() {
+        ThreadContext.clearMap();
+    }
+
+    @Test
+    public void testCountedWithoutLogEvent() {
+        collector.filter(logger, Level.WARN, null, "test {}", 1);
+        collector.filter(logger, Level.ERROR, null, (Object) "test", null);
+        collector.filter(logger, Level.INFO, null, "test {} {} {}", 1, 2, 3);
+        collector.filter(logger, Level.DEBUG, null, "below the logger level");
+        assertEquals(3, aggregator.counted.size());
+        assertEquals(logger.getName(), aggregator.counted.get(0));
+        assertTrue(aggregator.sent.isEmpty());
+    }
+
+    @Test
+    public void testEnabledCheckIsNotCounted() {
+        collector.filter(logger, Level.WARN, null, (Object) null, null);
+        collector.filter(logger, Level.WARN, null, (Message) null, null);
+        collector.filter(logger, Level.WARN, null, (String) null, (Object[]) null);
+        assertTrue(aggregator.counted.isEmpty());
+    }
+
+    @Test
+    public void testSampledEventIsSentWithMdc() {
+        aggregator.sampling = true;
+        ThreadContext.put("myKey", "TEST_KEY");
+        collector.filter(logger, Level.WARN, null, "test {}", 1);
+        ThreadContext.remove("myKey");
+
+        assertEquals(1, aggregator.sent.size());
+        LogEvent event = aggregator.sent.get(0);
+        assertEquals(Level.WARN, event.getLevel());
+        assertEquals("test 1", event.getMessage().getFormattedMessage());
+        assertEquals("TEST_KEY", event.getContextData().getValue("myKey"));
+        assertEquals(getClass().getName(), event.getSource().getClassName());
+        assertEquals("testSampledEventIsSentWithMdc", event.getSource().getMethodName());
+    }
+
+    @Test
+    public void testContextWideFilter() {
+        aggregator.sampling = true;
+        LoggerContext context = logger.getContext();
+        context.getConfiguration().addFilter(collector);
+        context.updateLoggers();
+        try {
+            assertTrue(logger.isWarnEnabled());
+            assertTrue(aggregator.counted.isEmpty());
+            logger.warn("test {}", 1);
+        } finally {
+            context.getConfiguration().removeFilter(collector);
+            context.updateLoggers();
+        }
+        assertEquals(1, aggregator.counted.size());
+        assertEquals(1, aggregator.sent.size());
+        StackTraceElement source = aggregator.sent.get(0).getSource();
+        assertEquals(getClass().getName(), source.getClassName());
+        assertEquals("testContextWideFilter", source.getMethodName());
+        assertEquals(AbstractLogger.class.getName(), aggregator.sent.get(0).getLoggerFqcn());
+    }
+
+    private static class RecordingAggregator extends Aggregator<LogEvent, String, String> {
+        private final List<String> counted = new ArrayList<>();
+        private final List<LogEvent> sent = new ArrayList<>();
+        private boolean sampling;
+
+        RecordingAggregator() {
+            super(new Log4j2MessageWriter(), new Log4j2EventProcessor());
+        }
+
+        @Override
+        public int count(String key, int levelIndex) {
+            counted.add(key);
+            return 0;
+        }
+
+        @Override
+        public boolean sample(int loggerId, int levelIndex) {
+            return sampling;
+        }
+
+        @Override
+        public void send(LogEvent event, int levelIndex) {
+            sent.add(event);
+        }
+    }
+}
@@ -20,6 +20,9 @@ import com.axibase.tsd.collector.config.SeriesSenderConfig;
 import com.axibase.tsd.collector.config.Tag;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ReusableMessageFactory;
 import org.junit.Test;
 
 import java.io.IOException;
@@ -29,6 +32,9 @@ import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class Log4j2MessageWriterTest {
@@ -39,7 +45,7 @@ public class Log4j2MessageWriterTest {
         Log4j2MessageWriter messageBuilder = createMessageBuilder(catcher);
         Map<String, EventCounter<String>> events = new HashMap<String, EventCounter<String>>();
         events.put("test-logger", createCounter(100, Level.ERROR.toString()));
-        messageBuilder.writeStatMessages(catcher, events, 60000);
+        messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
         String result = catcher.sb.toString();
         System.out.println("result = " + result);
         assertTrue(result.substring(0, result.length()).contains(
@@ -59,7 +65,7 @@ public class Log4j2MessageWriterTest {
 
             events.put("test-logger", createCounter(100, Level.ERROR.toString(), Level.WARN.toString(), Level.DEBUG.toString()));
 
-            messageBuilder.writeStatMessages(catcher, events, 60000);
+            messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result0 = " + result);
             assertTrue(
@@ -70,7 +76,7 @@ public class Log4j2MessageWriterTest {
             assertTrue(result.contains("WARN"));
             assertTrue(result.contains("DEBUG"));
             assertTrue(result.contains("m:log_event_counter=100 "));
-//            assertTrue(result.contains("m:log_event_total_rate=100.0 "));
+            assertTrue(result.contains("m:log_event_total_rate=100.0 "));
             assertTrue(result.contains("m:log_event_total_counter=100 "));
         }
 
@@ -78,7 +84,7 @@ public class Log4j2MessageWriterTest {
             catcher.clear();
             events.clear();
             events.put("test-logger", createCounter(1, Level.ERROR.toString()));
-            messageBuilder.writeStatMessages(catcher, events, 60000);
+            messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result1 = " + result);
             assertTrue(result.contains("ERROR"));
@@ -86,36 +92,36 @@ public class Log4j2MessageWriterTest {
             assertTrue(result.contains("DEBUG"));
             assertTrue(result.contains("m:log_event_counter=100"));
             assertTrue(result.contains("m:log_event_counter=101"));
-//            assertTrue(result.contains("m:log_event_total_rate=0.0"));
-//            assertTrue(result.contains("m:log_event_total_rate=1.0"));
+            assertTrue(result.contains("m:log_event_total_rate=0.0"));
+            assertTrue(result.contains("m:log_event_total_rate=1.0"));
             assertTrue(result.contains("m:log_event_total_counter=100"));
             assertTrue(result.contains("m:log_event_total_counter=101"));
         }
         {
             catcher.clear();
             events.clear();
-            messageBuilder.writeStatMessages(catcher, events, 60000);
+            messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result2 = " + result);
             assertTrue(result.contains("ERROR"));
             assertTrue(result.contains("WARN"));
             assertTrue(result.contains("DEBUG"));
             assertTrue(result.contains("m:log_event_counter=101"));
-//            assertTrue(result.contains("m:log_event_total_rate=0"));
+            assertTrue(result.contains("m:log_event_total_rate=0"));
             assertTrue(result.contains("m:log_event_total_counter=100"));
             assertTrue(result.contains("m:log_event_total_counter=101"));
         }
         {
             catcher.clear();
             events.clear();
-            messageBuilder.writeStatMessages(catcher, events, 60000);
+            messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result3 = " + result);
             assertTrue(result.contains("ERROR"));
             assertTrue(result.contains("WARN"));
             assertTrue(result.contains("DEBUG"));
-//            assertFalse(result.contains("m:log_event_rate=0"));
-//            assertTrue(result.contains("m:log_event_total_rate=0"));
+            assertFalse(result.contains("m:log_event_rate=0"));
+            assertTrue(result.contains("m:log_event_total_rate=0"));
             assertTrue(result.contains("m:log_event_total_counter=100"));
             assertTrue(result.contains("m:log_event_total_counter=101"));
         }
@@ -126,7 +132,7 @@ public class Log4j2MessageWriterTest {
         StringsCatcher catcher = new StringsCatcher();
         Log4j2MessageWriter messageBuilder = createMessageBuilder(catcher);
         LogEvent event = Log4j2Utils.createLogEvent(Level.ERROR, "test-logger", "test-message", "test-thread");
-        messageBuilder.writeSingles(catcher, createSingles(event, 0));
+        messageBuilder.writeSingle(catcher, createSingle(event, 0));
         String result = catcher.sb.toString();
         assertTrue(result.substring(0, result.length()).contains(
                 "t:ttt1=vvv1 t:ttt2=vvv2 t:type=logger m:test-message t:severity=ERROR t:level=ERROR t:source=test-logger"));
@@ -138,7 +144,7 @@ public class Log4j2MessageWriterTest {
         Log4j2MessageWriter messageBuilder = createMessageBuilder(catcher);
         LogEvent event = Log4j2Utils.createLogEvent(Level.ERROR, "test-logger", "test-message", "test-thread",
                 new NullPointerException("test"));
-        messageBuilder.writeSingles(catcher, createSingles(event, 10));
+        messageBuilder.writeSingle(catcher, createSingle(event, 10));
         String result = catcher.sb.toString();
         System.out.println("result = " + result);
         final String text = "t:ttt1=vvv1 t:ttt2=vvv2 t:type=logger m:\"test-message\n" +
@@ -147,10 +153,37 @@ public class Log4j2MessageWriterTest {
         assertTrue(result, result.contains(text));
     }
 
-    private CountedQueue<EventWrapper<LogEvent>> createSingles(LogEvent event, int lines) {
-        CountedQueue<EventWrapper<LogEvent>> singles = new CountedQueue<EventWrapper<LogEvent>>();
-        singles.add(new EventWrapper<LogEvent>(event, lines, event.getMessage().getFormattedMessage(),null));
-        return singles;
+    @Test
+    public void testDeferredFormatting() throws Exception {
+        StringsCatcher catcher = new StringsCatcher();
+        Log4j2MessageWriter messageBuilder = new Log4j2MessageWriter();
+        messageBuilder.setEntity("test-entity");
+        messageBuilder.setPattern("%m");
+        SeriesSenderConfig seriesSenderConfig = new SeriesSenderConfig();
+        seriesSenderConfig.setDeferMessageFormatting(true);
+        messageBuilder.setSeriesSenderConfig(seriesSenderConfig);
+        messageBuilder.start(catcher, Level.TRACE.intLevel(), 60, new HashMap<String, String>());
+        StringBuilder argument = new StringBuilder("42");
+        Message message = ReusableMessageFactory.INSTANCE.newMessage("value-{}", argument);
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setLevel(Level.WARN)
+                .setLoggerName("test-logger")
+                .setMessage(message)
+                .build();
+        EventWrapper<LogEvent> wrapper = messageBuilder.createWrapper(event, 0);
+        // log4j2 reuses the message after the logging call and the argument is changed
+        ReusableMessageFactory.release(message);
+        argument.setLength(0);
+        argument.append("43");
+        assertNull(wrapper.getMessage());
+
+        messageBuilder.writeSingle(catcher, wrapper);
+        String result = catcher.sb.toString();
+        assertTrue(result, result.contains("m:value-42 t:severity=WARN t:level=WARN t:source=test-logger"));
+    }
+
+    private EventWrapper<LogEvent> createSingle(LogEvent event, int lines) {
+        return new EventWrapper<LogEvent>(event, lines, event.getMessage().getFormattedMessage(),null);
     }
 
     private Log4j2MessageWriter createMessageBuilder(WritableByteChannel writer) {
@@ -172,6 +205,9 @@ public class Log4j2MessageWriterTest {
         return simpleCounter;
     }
 
+    /**
+     * Message argument which records the thread formatting it.
+     */
     private static class StringsCatcher implements WritableByteChannel {
         private StringBuilder sb = new StringBuilder();
 
@@ -16,6 +16,7 @@
 package com.axibase.tsd.collector.logback;
 
 import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.filter.Filter;
 import ch.qos.logback.core.spi.ContextAware;
@@ -25,6 +26,7 @@ import com.axibase.tsd.collector.AtsdUtil;
 import com.axibase.tsd.collector.InternalLogger;
 import com.axibase.tsd.collector.config.SeriesSenderConfig;
 import com.axibase.tsd.collector.config.Tag;
+import com.axibase.tsd.collector.config.WriterConfig;
 import com.axibase.tsd.collector.writer.AtsdWriterFactory;
 import com.axibase.tsd.collector.writer.LoggingWrapper;
 import org.apache.commons.lang3.StringUtils;
@@ -41,8 +43,10 @@ public class Collector<E extends ILoggingEvent> extends Filter<E> implements Con
     private LogbackWriter<E> logbackWriter;
     private Aggregator<E, String, Level> aggregator;
     private SeriesSenderConfig seriesSenderConfig;
+    private WriterConfig writerConfig;
     private final List<LogbackEventTrigger<E>> triggers = new ArrayList<>();
     private WritableByteChannel writer;
+    private CollectorTurboFilter turboFilter;
     /**
      * Settings from logback file.
      */
@@ -57,6 +61,22 @@ public class Collector<E extends ILoggingEvent> extends Filter<E> implements Con
     private Integer intervalSeconds;
     private Boolean sendLoggerCounter;
     private int messageLength = -1;
+    private Integer urgentEnqueueTimeoutMs;
+    private Boolean deferMessageFormatting;
+    private boolean turboFilterEnabled;
+    private Integer rateIntervalSeconds;
+    // writer
+    private Boolean httpBatch;
+    private Integer maxBatchSize;
+    private Boolean httpGzip;
+    private Integer gzipMinSize;
+    private Boolean tcpNonBlocking;
+    private Integer tcpQueueSize;
+    private Integer udpPayloadSize;
+    private String spoolDirectory;
+    private Long spoolMaxSize;
+    private Long spoolReplayRate;
+    private String endpointWeights;
     // tags
     private final List<Tag> tags = new ArrayList<>();
     private final List<String> mdcTags = new ArrayList<>();
@@ -65,7 +85,9 @@ public class Collector<E extends ILoggingEvent> extends Filter<E> implements Con
     public FilterReply decide(E event) {
         try {
             if (event.getLevel().isGreaterOrEqual(level)) {
-                if (aggregator != null) {
+                if (turboFilter != null) {
+                    aggregator.sample(event);
+                } else if (aggregator != null) {
                     aggregator.register(event);
                 }
             }
@@ -81,7 +103,8 @@ public class Collector<E extends ILoggingEvent> extends Filter<E> implements Con
         context.register(this);
         initSeriesSenderConfig();
         try {
-            writer = AtsdWriterFactory.getWriter(url, ignoreSslErrors);
+            initWriterConfig();
+            writer = AtsdWriterFactory.getWriter(url, ignoreSslErrors, writerConfig);
             writer = LoggingWrapper.tryWrap(debug, writer);
             logbackWriter = new LogbackWriter<>();
             if (entity != null) {
@@ -106,6 +129,7 @@ public class Collector<E extends ILoggingEvent> extends Filter<E> implements Con
 
             aggregator = new Aggregator<>(logbackWriter, new LogbackEventProcessor<E>());
             aggregator.setWriter(writer);
+            aggregator.setWriterConfig(writerConfig);
             aggregator.setSeriesSenderConfig(seriesSenderConfig);
             aggregator.addSendMessageTrigger(new LogbackEventTrigger<E>(Level.ERROR));
             aggregator.addSendMessageTrigger(new LogbackEventTrigger<E>(Level.WARN));
@@ -120,6 +144,12 @@ public class Collector<E extends ILoggingEvent> extends Filter<E> implements Con
             stringSettings.put("scheme", StringUtils.substringBefore(url, ":"));
             logbackWriter.start(writer, level.levelInt, (int) (seriesSenderConfig.getIntervalMs() / 1000), stringSettings);
             aggregator.start();
+            if (turboFilterEnabled && context instanceof LoggerContext) {
+                turboFilter = new CollectorTurboFilter(aggregator, level);
+                turboFilter.setContext(context);
+                turboFilter.start();
+                ((LoggerContext) context).addTurboFilter(turboFilter);
+            }
         } catch (Exception e) {
             AtsdUtil.logError("Cannot start " + getClass().getSimpleName() + " - " + e + ".");
         }
@@ -133,11 +163,62 @@ public class Collector<E extends ILoggingEvent> extends Filter<E> implements Con
         if (sendLoggerCounter != null) {
             seriesSenderConfig.setSendLoggerCounter(sendLoggerCounter);
         }
+        if (urgentEnqueueTimeoutMs != null) {
+            seriesSenderConfig.setUrgentEnqueueTimeoutMs(urgentEnqueueTimeoutMs);
+        }
+        if (deferMessageFormatting != null) {
+            seriesSenderConfig.setDeferMessageFormatting(deferMessageFormatting);
+        }
+        if (rateIntervalSeconds != null) {
+            seriesSenderConfig.setRateIntervalSeconds(rateIntervalSeconds);
+        }
+    }
+
+    private void initWriterConfig() {
+        writerConfig = new WriterConfig();
+        if (httpBatch != null) {
+            writerConfig.setHttpBatch(httpBatch);
+        }
+        if (maxBatchSize != null) {
+            writerConfig.setMaxBatchSize(maxBatchSize);
+        }
+        if (httpGzip != null) {
+            writerConfig.setHttpGzip(httpGzip);
+        }
+        if (gzipMinSize != null) {
+            writerConfig.setGzipMinSize(gzipMinSize);
+        }
+        if (tcpNonBlocking != null) {
+            writerConfig.setTcpNonBlocking(tcpNonBlocking);
+        }
+        if (tcpQueueSize != null) {
+            writerConfig.setTcpQueueSize(tcpQueueSize);
+        }
+        if (udpPayloadSize != null) {
+            writerConfig.setUdpPayloadSize(udpPayloadSize);
+        }
+        if (spoolDirectory != null) {
+            writerConfig.setSpoolDirectory(spoolDirectory);
+        }
+        if (spoolMaxSize != null) {
+            writerConfig.setSpoolMaxSize(spoolMaxSize);
+        }
+        if (spoolReplayRate != null) {
+            writerConfig.setSpoolReplayRate(spoolReplayRate);
+        }
+        if (endpointWeights != null) {
+            writerConfig.setEndpointWeights(endpointWeights);
+        }
     }
 
     @Override
     public void stop() {
         super.stop();
+        if (turboFilter != null) {
+            ((LoggerContext) context).getTurboFilterList().remove(turboFilter);
+            turboFilter.stop();
+            turboFilter = null;
+        }
         if (writer != null) {
             aggregator.stop();
             logbackWriter.stop();
@@ -191,4 +272,64 @@ public class Collector<E extends ILoggingEvent> extends Filter<E> implements Con
     public void setIgnoreSslErrors(String ignoreSslErrors) {
         this.ignoreSslErrors = ignoreSslErrors;
     }
+
+    public void setHttpBatch(boolean httpBatch) {
+        this.httpBatch = httpBatch;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setUrgentEnqueueTimeoutMs(int urgentEnqueueTimeoutMs) {
+        this.urgentEnqueueTimeoutMs = urgentEnqueueTimeoutMs;
+    }
+
+    public void setDeferMessageFormatting(boolean deferMessageFormatting) {
+        this.deferMessageFormatting = deferMessageFormatting;
+    }
+
+    public void setTurboFilter(boolean turboFilter) {
+        this.turboFilterEnabled = turboFilter;
+    }
+
+    public void setRateIntervalSeconds(int rateIntervalSeconds) {
+        this.rateIntervalSeconds = rateIntervalSeconds;
+    }
+
+    public void setHttpGzip(boolean httpGzip) {
+        this.httpGzip = httpGzip;
+    }
+
+    public void setGzipMinSize(int gzipMinSize) {
+        this.gzipMinSize = gzipMinSize;
+    }
+
+    public void setTcpNonBlocking(boolean tcpNonBlocking) {
+        this.tcpNonBlocking = tcpNonBlocking;
+    }
+
+    public void setTcpQueueSize(int tcpQueueSize) {
+        this.tcpQueueSize = tcpQueueSize;
+    }
+
+    public void setUdpPayloadSize(int udpPayloadSize) {
+        this.udpPayloadSize = udpPayloadSize;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    public void setSpoolReplayRate(long spoolReplayRate) {
+        this.spoolReplayRate = spoolReplayRate;
+    }
+
+    public void setEndpointWeights(String endpointWeights) {
+        this.endpointWeights = endpointWeights;
+    }
 }
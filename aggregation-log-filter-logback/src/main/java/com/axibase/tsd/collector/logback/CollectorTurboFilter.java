@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.axibase.tsd.collector.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import com.axibase.tsd.collector.Aggregator;
+import org.slf4j.Marker;
+
+/**
+ * Counts events from the logging call arguments before logback creates a logging event.
+ * Registered by {@link Collector} when the {@code turboFilter} setting is enabled, the collector then only samples
+ * messages of the events reaching its appender.
+ */
+class CollectorTurboFilter extends TurboFilter {
+    private final Aggregator<?, String, Level> aggregator;
+    private final Level level;
+
+    CollectorTurboFilter(Aggregator<?, String, Level> aggregator, Level level) {
+        this.aggregator = aggregator;
+        this.level = level;
+    }
+
+    @Override
+    public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params, Throwable t) {
+        // isEnabled checks are called without a format
+        if (format != null && level.isGreaterOrEqual(this.level) && level.isGreaterOrEqual(logger.getEffectiveLevel())) {
+            final int levelIndex = LogbackSyncCounter.indexOf(level);
+            if (levelIndex >= 0) {
+                aggregator.count(logger.getName(), levelIndex);
+            }
+        }
+        return FilterReply.NEUTRAL;
+    }
+}
@@ -38,4 +38,19 @@ public class LogbackEventProcessor<E extends ILoggingEvent>
     public String extractKey(E event) {
         return event.getLoggerName();
     }
+
+    @Override
+    public int levelCount() {
+        return LogbackSyncCounter.levelCount();
+    }
+
+    @Override
+    public int levelIndex(E event) {
+        return LogbackSyncCounter.indexOf(event.getLevel());
+    }
+
+    @Override
+    public int levelIndex(int intLevel) {
+        return LogbackSyncCounter.indexOf(intLevel);
+    }
 }
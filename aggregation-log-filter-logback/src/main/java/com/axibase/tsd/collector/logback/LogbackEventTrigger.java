@@ -42,8 +42,8 @@ public class LogbackEventTrigger<E extends ILoggingEvent> extends SendMessageTri
     }
 
     @Override
-    public boolean onEvent(E event) {
-        return event != null && event.getLevel().levelInt == level.levelInt && super.onEvent(event);
+    protected boolean accept(E event) {
+        return event != null && event.getLevel().levelInt == level.levelInt;
     }
 
     public static boolean isErrorInstance(ILoggingEvent event) {
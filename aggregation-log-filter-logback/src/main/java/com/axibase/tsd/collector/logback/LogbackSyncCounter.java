@@ -17,44 +17,44 @@ package com.axibase.tsd.collector.logback;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import com.axibase.tsd.collector.EventCounter;
-import com.axibase.tsd.collector.SimpleCounter;
-import com.axibase.tsd.collector.SyncEventCounter;
+import com.axibase.tsd.collector.LevelIndexedSyncCounter;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+class LogbackSyncCounter<E extends ILoggingEvent> extends LevelIndexedSyncCounter<E, Level> {
+    private static final Level[] LEVELS = {Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR};
 
-class LogbackSyncCounter<E extends ILoggingEvent> implements SyncEventCounter<E, Level> {
-    private ConcurrentMap<Level, AtomicLong> values = new ConcurrentHashMap<Level, AtomicLong>();
+    LogbackSyncCounter() {
+        super(LEVELS);
+    }
 
     @Override
-    public EventCounter<Level> updateAndCreateDiff(EventCounter<Level> lastCount) {
-        EventCounter<Level> result = null;
-        for (Map.Entry<Level, AtomicLong> entry : values.entrySet()) {
-            Level key = entry.getKey();
-            AtomicLong cnt = entry.getValue();
-            long diff = lastCount.updateAndGetDiff(key, cnt.get());
-            if (diff > 0) {
-                if (result == null) {
-                    result = new SimpleCounter<Level>();
-                }
-                result.updateAndGetDiff(key, diff);
+    protected int levelIndex(E event) {
+        return indexOf(event.getLevel());
+    }
+
+    @Override
+    protected Level level(E event) {
+        return event.getLevel();
+    }
+
+    static int levelCount() {
+        return LEVELS.length;
+    }
+
+    static int indexOf(Level level) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i] == level) {
+                return i;
             }
         }
-        return result;
+        return -1;
     }
 
-    @Override
-    public void increment(E event) {
-        Level level = event.getLevel();
-        AtomicLong count = values.get(level);
-        if (count == null) {
-            count = new AtomicLong(0);
-            AtomicLong old = values.putIfAbsent(level, count);
-            count = old == null ? count : old;
+    static int indexOf(int intLevel) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].levelInt == intLevel) {
+                return i;
+            }
         }
-        count.incrementAndGet();
+        return -1;
     }
 }
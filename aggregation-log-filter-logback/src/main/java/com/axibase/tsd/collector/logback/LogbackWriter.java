@@ -24,14 +24,16 @@ import ch.qos.logback.core.spi.ContextAwareBase;
 import com.axibase.tsd.collector.*;
 import com.axibase.tsd.collector.config.SeriesSenderConfig;
 import com.axibase.tsd.collector.config.Tag;
+import com.axibase.tsd.collector.config.WriterConfig;
 import com.axibase.tsd.collector.writer.BaseHttpAtsdWriter;
+import com.axibase.tsd.collector.writer.Batch;
 import com.axibase.tsd.collector.writer.LoggingWrapper;
 import com.axibase.tsd.collector.writer.TcpAtsdWriter;
-import org.slf4j.MDC;
 
 import java.io.IOException;
 import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.regex.Pattern;
 
 public class LogbackWriter<E extends ILoggingEvent>
         extends ContextAwareBase
@@ -42,16 +44,21 @@ public class LogbackWriter<E extends ILoggingEvent>
     private SeriesSenderConfig seriesSenderConfig = SeriesSenderConfig.DEFAULT;
     private final Map<Level, CounterWithSum> totals = new HashMap<>();
     private MessageHelper messageHelper = new MessageHelper();
+    private Clock clock = CachedClock.INSTANCE;
+    private static final Pattern LOCATION_PATTERN =
+            Pattern.compile("%[-.\\d]*(C|F|L|M|caller|class|file|line|method)(?![a-zA-Z])");
     private PatternLayout patternLayout;
+    private boolean locationRequired;
     private String pattern;
     private String atsdUrl;
-    private Set<String> mdcTags = new HashSet<>();
+    private String[] mdcTags = new String[0];
     private int messageLength = -1;
 
     @Override
     public synchronized void writeStatMessages(WritableByteChannel writer,
                                                Map<String, EventCounter<Level>> diff,
-                                               long deltaTime) throws IOException {
+                                               long deltaTime,
+                                               long time) throws IOException {
         if (deltaTime < 1) {
             throw new IllegalArgumentException("Illegal delta tie value: " + deltaTime);
         }
@@ -78,7 +85,6 @@ public class LogbackWriter<E extends ILoggingEvent>
             }
         }
 
-        long time = System.currentTimeMillis();
 
         // compose & clean
         for (Map.Entry<LoggerAndLevel<Level>, CounterWithSum> entry : loggerEventHistory.entrySet()) {
@@ -93,7 +99,7 @@ public class LogbackWriter<E extends ILoggingEvent>
                 try {
                     if (seriesSenderConfig.isSendLoggerCounter()) {
                         String levelString = level.toString();
-                        messageHelper.writeCounter(writer, key, levelString, counter.getSum());
+                        messageHelper.writeCounter(writer, time, key, levelString, counter.getSum());
                     }
                 } catch (Exception e) {
                     AtsdUtil.logError("Could not write log_event_counter series " + atsdUrl + " - " + e.getMessage());
@@ -118,11 +124,15 @@ public class LogbackWriter<E extends ILoggingEvent>
             CounterWithSum counterWithSum = entry.getValue();
             try {
                 String levelString = level.toString();
+                long delta = counterWithSum.getValue();
                 counterWithSum.clean();
                 // write total sum
                 messageHelper.writeTotalCounter(writer, time, counterWithSum, levelString);
+                // write rate normalized to the rate interval
+                messageHelper.writeTotalRate(writer, time,
+                        (double) delta * seriesSenderConfig.getRateIntervalMs() / deltaTime, levelString);
             } catch (Exception e) {
-                AtsdUtil.logError("Could not write log_event_total_counter series " + atsdUrl + " - " + e.getMessage());
+                AtsdUtil.logError("Could not write log_event_total series " + atsdUrl + " - " + e.getMessage());
             } finally {
 //                entry.getValue().decrementZeroRepeats();
             }
@@ -130,18 +140,14 @@ public class LogbackWriter<E extends ILoggingEvent>
     }
 
     @Override
-    public void writeSingles(WritableByteChannel writer, CountedQueue<EventWrapper<E>> singles) throws IOException {
-        EventWrapper<E> wrapper;
-        while ((wrapper = singles.poll()) != null) {
-            writeSingle(writer, wrapper);
-        }
-    }
-
-    private void writeSingle(WritableByteChannel writer, EventWrapper<E> wrapper) {
+    public void writeSingle(WritableByteChannel writer, EventWrapper<E> wrapper) {
         try {
             E event = wrapper.getEvent();
             StringBuilder sb = new StringBuilder();
             String message = wrapper.getMessage();
+            if (message == null) {
+                message = format(event);
+            }
             if (messageLength >= 0)
                 message = message.substring(0, Math.min(message.length(), messageLength));
             int lines = wrapper.getLines();
@@ -161,25 +167,21 @@ public class LogbackWriter<E extends ILoggingEvent>
                 }
                 message = msb.toString();
             }
-            writeMessage(writer, event, sb, message, wrapper.getContext());
+            writeMessage(writer, event, sb, message, wrapper.getMdcValues());
         } catch (IOException e) {
             AtsdUtil.logError("Could not write message " + atsdUrl);
         }
     }
 
     @Override
-    public boolean sendErrorInstance(WritableByteChannel writableByteChannel, E event) {
-        if (LogbackEventTrigger.isErrorInstance(event)) {
-            writeSingle(writableByteChannel, createWrapper(event, Integer.MAX_VALUE));
-            return true;
-        }
-        return false;
+    public boolean isErrorInstance(E event) {
+        return LogbackEventTrigger.isErrorInstance(event);
     }
 
     private void writeMessage(WritableByteChannel writer,
                               E event,
                               StringBuilder sb,
-                              String message, Map context) throws IOException {
+                              String message, String[] mdcValues) throws IOException {
         final String levelValue = event.getLevel().toString();
         final String loggerName = event.getLoggerName();
         Map<String, String> locationMap = new HashMap<>();
@@ -189,14 +191,13 @@ public class LogbackWriter<E extends ILoggingEvent>
             locationMap.put("line", String.valueOf(stackTraceElement.getLineNumber()));
             locationMap.put("method", stackTraceElement.getMethodName());
         }
-        if (context != null && mdcTags.size() > 0) {
-            Set keySet = context.keySet();
-            for (String mdcTag : mdcTags) {
-                if (keySet.contains(mdcTag))
-                    locationMap.put(mdcTag, (String) context.get(mdcTag));
+        if (mdcValues != null) {
+            for (int i = 0; i < mdcValues.length; i++) {
+                if (mdcValues[i] != null)
+                    locationMap.put(mdcTags[i], mdcValues[i]);
             }
         }
-        messageHelper.writeMessage(writer, sb, message, levelValue, loggerName, locationMap);
+        messageHelper.writeMessage(writer, event.getTimeStamp(), sb, message, levelValue, loggerName, locationMap);
     }
 
     @Override
@@ -218,13 +219,16 @@ public class LogbackWriter<E extends ILoggingEvent>
         stringSettings.put("level", Level.toLevel(level).toString());
         stringSettings.put("intervalSeconds", intervalSeconds + "");
         stringSettings.put("framework", "logback");
-        messageHelper.init(writer, stringSettings);
+        // the commands written on start are sent in one batch before the status of the writer is checked
+        final Batch batch = writer == null ? null : new Batch(writer, WriterConfig.DEFAULT_MAX_BATCH_SIZE);
+        messageHelper.init(batch, stringSettings);
 
         if (pattern != null) {
             patternLayout = new PatternLayout();
             patternLayout.setContext(context);
             patternLayout.setPattern(pattern);
             patternLayout.start();
+            locationRequired = LOCATION_PATTERN.matcher(pattern).find();
         }
         int[] levels = {Level.TRACE_INT, Level.DEBUG_INT, Level.INFO_INT, Level.WARN_INT, Level.ERROR_INT};
         for (int l : levels) {
@@ -240,9 +244,10 @@ public class LogbackWriter<E extends ILoggingEvent>
                     if (l < level) {
                         continue;
                     }
-                    messageHelper.writeTotalCounter(writer, System.currentTimeMillis(), new CounterWithSum(0, 0),
+                    messageHelper.writeTotalCounter(batch, clock.currentTimeMillis(), new CounterWithSum(0, 0),
                             Level.toLevel(l).toString());
                 }
+                batch.flush();
                 WritableByteChannel writerToCheck = writer;
                 if (writerToCheck instanceof LoggingWrapper) {
                     writerToCheck = ((LoggingWrapper) writerToCheck).getWrapped();
@@ -271,20 +276,51 @@ public class LogbackWriter<E extends ILoggingEvent>
 
     @Override
     public EventWrapper<E> createWrapper(E event, int lines) {
-        String message;
+        if (seriesSenderConfig.isDeferMessageFormatting()) {
+            // as logback's AsyncAppender does: the message text, thread name and MDC are captured
+            // on the logging thread, so later changes of mutable arguments are not shown
+            event.prepareForDeferredProcessing();
+            if (locationRequired) {
+                event.getCallerData();
+            }
+            return new EventWrapper<E>(event, lines, null, captureMdc(event));
+        }
+        return new EventWrapper<E>(event, lines, format(event), captureMdc(event));
+    }
+
+    private String[] captureMdc(E event) {
+        final String[] tags = mdcTags;
+        if (tags.length == 0) {
+            return null;
+        }
+        Map<String, String> mdc = event.getMDCPropertyMap();
+        if (mdc == null || mdc.isEmpty()) {
+            return null;
+        }
+        String[] values = new String[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            values[i] = mdc.get(tags[i]);
+        }
+        return values;
+    }
+
+    private String format(E event) {
         if (patternLayout == null) {
-            message = event.getFormattedMessage();
-        } else {
-            message = patternLayout.doLayout(event);
+            return event.getFormattedMessage();
         }
-        Map context = MDC.getCopyOfContextMap();
-        return new EventWrapper<E>(event, lines, message, context);
+        return patternLayout.doLayout(event);
     }
 
     public void addTag(Tag tag) {
         tags.put(tag.getName(), tag.getValue());
     }
 
+    @Override
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        messageHelper.setClock(clock);
+    }
+
     public void setEntity(String entity) {
         this.entity = entity;
     }
@@ -302,7 +338,10 @@ public class LogbackWriter<E extends ILoggingEvent>
     }
 
     public void addMdcTag(String mdcTag) {
-        mdcTags.add(mdcTag);
+        if (!Arrays.asList(mdcTags).contains(mdcTag)) {
+            mdcTags = Arrays.copyOf(mdcTags, mdcTags.length + 1);
+            mdcTags[mdcTags.length - 1] = mdcTag;
+        }
     }
 
     public void setMessageLength(int messageLength) {
@@ -33,6 +33,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -79,7 +81,146 @@ public class AggregatorTest extends TestCase {
         // 2 -- series fired by time (counter and total counter)
         // 4 -- initial properties
         // 4 -- initial total zeros
-        assertEquals(15, mockWriter.cnt);
+        // 4 -- total rates (two levels, fired by cnt and by time)
+        assertEquals(19, mockWriter.cnt);
+    }
+
+    public void testErrorInstanceDoesNotWaitForWriter() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        WritableByteChannel blockingWriter = new MockWritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.countDown();
+                final int length = src.remaining();
+                src.position(src.limit());
+                return length;
+            }
+        };
+        SeriesSenderConfig seriesSenderConfig = new SeriesSenderConfig(0, 60, 0);
+        seriesSenderConfig.setUrgentEnqueueTimeoutMs(0);
+        LogbackWriter messageWriter = new LogbackWriter();
+        messageWriter.setSeriesSenderConfig(seriesSenderConfig);
+        messageWriter.start(mockWriter, Level.WARN_INT, 60, new HashMap<String, String>());
+        final Aggregator aggregator = new Aggregator(messageWriter, new LogbackEventProcessor());
+        aggregator.setWriter(blockingWriter);
+        aggregator.setSeriesSenderConfig(seriesSenderConfig);
+        aggregator.start();
+
+        final LoggingEvent event = LogbackUtils.createLoggingEvent(Level.ERROR, "logger", "test-msg", "test-thread",
+                new OutOfMemoryError("test"));
+        final CountDownLatch registered = new CountDownLatch(1);
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread logging = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        aggregator.register(event);
+                    }
+                } catch (IOException e) {
+                    failed.set(true);
+                }
+                registered.countDown();
+            }
+        });
+        logging.start();
+        // all events are registered while the writer is still blocked
+        assertTrue(registered.await(30, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+        assertTrue(aggregator.getDroppedUrgentCount() > 0);
+
+        release.countDown();
+        assertTrue(written.await(30, TimeUnit.SECONDS));
+        aggregator.stop();
+    }
+
+    public void testErrorInstanceQueuedInInterruptedThread() throws Exception {
+        SeriesSenderConfig seriesSenderConfig = new SeriesSenderConfig(0, 60, 0);
+        LogbackWriter messageWriter = new LogbackWriter();
+        messageWriter.setSeriesSenderConfig(seriesSenderConfig);
+        Aggregator aggregator = new Aggregator(messageWriter, new LogbackEventProcessor());
+        aggregator.setWriter(mockWriter);
+        aggregator.setSeriesSenderConfig(seriesSenderConfig);
+
+        LoggingEvent event = LogbackUtils.createLoggingEvent(Level.ERROR, "logger", "test-msg", "test-thread",
+                new OutOfMemoryError("test"));
+        Thread.currentThread().interrupt();
+        try {
+            assertTrue(aggregator.register(event));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(0, aggregator.getDroppedUrgentCount());
+    }
+
+    public void testThresholdSharedByTriggeredLevels() throws Exception {
+        SeriesSenderConfig seriesSenderConfig = new SeriesSenderConfig(0, 60, 0);
+        seriesSenderConfig.setMessageSkipThreshold(SeriesSenderConfig.MIN_MESSAGE_SKIP_THRESHOLD);
+        LogbackWriter messageWriter = new LogbackWriter();
+        messageWriter.setSeriesSenderConfig(seriesSenderConfig);
+        LogbackEventProcessor eventProcessor = new LogbackEventProcessor();
+        Aggregator aggregator = new Aggregator(messageWriter, eventProcessor);
+        aggregator.setWriter(mockWriter);
+        aggregator.setSeriesSenderConfig(seriesSenderConfig);
+        LogbackEventTrigger trigger = new LogbackEventTrigger(Level.ERROR);
+        trigger.setSendMultiplier(1.0);
+        aggregator.addSendMessageTrigger(trigger);
+
+        LoggingEvent event = LogbackUtils.createLoggingEvent(Level.ERROR, "logger", "test-msg", "test-thread");
+        for (int i = 0; i < 15; i++) {
+            assertTrue(aggregator.register(event));
+        }
+        // the only level with a trigger gets the whole threshold
+        assertEquals(5, aggregator.getDroppedSingleCount(eventProcessor.levelIndex(Level.ERROR_INT)));
+    }
+
+    public void testTriggerChecksEventLevel() throws Exception {
+        LogbackEventTrigger<ILoggingEvent> trigger = new LogbackEventTrigger<>(Level.ERROR);
+        LoggingEvent warn = LogbackUtils.createLoggingEvent(Level.WARN, "logger", "test-msg", "test-thread");
+        LoggingEvent error = LogbackUtils.createLoggingEvent(Level.ERROR, "logger", "test-msg", "test-thread");
+        assertFalse(trigger.onEvent(warn));
+        assertFalse(trigger.onEvent(warn, 0));
+        assertFalse(trigger.onEvent(null));
+        assertTrue(trigger.onEvent(error));
+    }
+
+    public void testFlushIntervalWithManualClock() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        WritableByteChannel catcher = new MockWritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                sb.append(StandardCharsets.UTF_8.decode(src));
+                return 0;
+            }
+        };
+        ManualClock clock = new ManualClock(System.currentTimeMillis());
+        SeriesSenderConfig seriesSenderConfig = new SeriesSenderConfig(0, 60, 0);
+        LogbackWriter messageWriter = new LogbackWriter();
+        messageWriter.setSeriesSenderConfig(seriesSenderConfig);
+        Aggregator aggregator = new Aggregator(messageWriter, new LogbackEventProcessor());
+        aggregator.setClock(clock);
+        messageWriter.start(catcher, Level.WARN_INT, 60, new HashMap<String, String>());
+        aggregator.setWriter(catcher);
+        aggregator.setSeriesSenderConfig(seriesSenderConfig);
+
+        LoggingEvent event = LogbackUtils.createLoggingEvent(Level.WARN, "logger", "test-msg", "test-thread");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(aggregator.register(event));
+        }
+        sb.setLength(0);
+        clock.advance(59 * 1000L);
+        aggregator.checkAndWrite();
+        assertFalse(sb.toString(), sb.toString().contains("m:log_event_counter="));
+
+        clock.advance(2 * 1000L);
+        aggregator.checkAndWrite();
+        assertTrue(sb.toString(), sb.toString().contains("m:log_event_counter=5 t:level=WARN t:logger=logger"));
     }
 
     @Test
@@ -208,7 +349,7 @@ public class AggregatorTest extends TestCase {
 
         @Override
         public void onEvent(ILoggingEvent event) {
-            CountedQueue<ILoggingEvent> iLoggingEvents = queueRef.get();
+            RedirCountedQueue<ILoggingEvent> iLoggingEvents = queueRef.get();
             iLoggingEvents.add(event);
         }
 
@@ -243,7 +384,8 @@ public class AggregatorTest extends TestCase {
         }
     }
 
-    private static class RedirCountedQueue<E> extends CountedQueue<E> {
+    private static class RedirCountedQueue<E> extends ConcurrentLinkedQueue<E> {
+        private final AtomicInteger count = new AtomicInteger();
         private volatile RedirCountedQueue<E> next;
 
         public void setNext(RedirCountedQueue<E> next) {
@@ -252,11 +394,18 @@ public class AggregatorTest extends TestCase {
 
         @Override
         public boolean offer(E e) {
-            if (next == null) {
-                return super.offer(e);
-            } else {
+            if (next != null) {
                 return next.offer(e);
             }
+            boolean offer = super.offer(e);
+            if (offer) {
+                count.incrementAndGet();
+            }
+            return offer;
+        }
+
+        public int getCount() {
+            return count.get();
         }
     }
 
@@ -264,11 +413,16 @@ public class AggregatorTest extends TestCase {
         private int cnt;
         @Override
         public int write(ByteBuffer src) throws IOException {
-            cnt++;
             byte[] data = new byte[src.remaining()];
-            src.duplicate().get(data);
+            src.get(data);
+            // commands of a flush cycle arrive in one batch
+            for (byte b : data) {
+                if (b == '\n') {
+                    cnt++;
+                }
+            }
             System.out.printf("%s%s%n", timePrefix(), new String(data, StandardCharsets.UTF_8));
-            return 0;
+            return data.length;
         }
 
         @Override
@@ -141,7 +141,7 @@ public class CollectorTest extends TestCase {
             assertTrue(result.contains("t:level=WARN"));
             assertFalse(result.contains("t:level=DEBUG"));
             assertTrue(result.contains("m:log_event_counter"));
-//            assertTrue(result.contains("m:log_event_total_rate"));
+            assertTrue(result.contains("m:log_event_total_rate"));
             assertTrue(result.contains("m:log_event_total_counter"));
         } finally {
             udpReceiver.stop();
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Axibase Corporation or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * https://www.axibase.com/atsd/axibase-apache-2.0.pdf
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.axibase.tsd.collector.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.spi.FilterReply;
+import com.axibase.tsd.collector.Aggregator;
+import com.axibase.tsd.collector.AtsdUtil;
+import com.axibase.tsd.collector.config.SeriesSenderConfig;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CollectorTurboFilterTest {
+
+    @Test
+    public void testCounting() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        WritableByteChannel catcher = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                String string = AtsdUtil.UTF_8.decode(src).toString();
+                sb.append(string);
+                return string.length();
+            }
+
+            @Override
+            public boolean isOpen() {
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        SeriesSenderConfig seriesSenderConfig = new SeriesSenderConfig();
+        LogbackWriter<ILoggingEvent> messageWriter = new LogbackWriter<>();
+        messageWriter.setSeriesSenderConfig(seriesSenderConfig);
+        messageWriter.start(catcher, Level.TRACE_INT, 60, new HashMap<String, String>());
+        Aggregator<ILoggingEvent, String, Level> aggregator =
+                new Aggregator<>(messageWriter, new LogbackEventProcessor<ILoggingEvent>());
+        aggregator.setWriter(catcher);
+        aggregator.setSeriesSenderConfig(seriesSenderConfig);
+
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("turbo-logger");
+        logger.setLevel(Level.INFO);
+        CollectorTurboFilter turboFilter = new CollectorTurboFilter(aggregator, Level.TRACE);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(FilterReply.NEUTRAL, turboFilter.decide(null, logger, Level.WARN, "test {}", new Object[]{i}, null));
+            // isWarnEnabled check
+            turboFilter.decide(null, logger, Level.WARN, null, null, null);
+        }
+        turboFilter.decide(null, logger, Level.DEBUG, "disabled", null, null);
+        sb.setLength(0);
+        aggregator.stop();
+
+        String result = sb.toString();
+        assertTrue(result, result.contains("m:log_event_counter=3 t:level=WARN t:logger=turbo-logger"));
+        assertFalse(result, result.contains("t:level=DEBUG t:logger=turbo-logger"));
+    }
+}
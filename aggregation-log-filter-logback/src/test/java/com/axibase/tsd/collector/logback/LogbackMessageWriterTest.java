@@ -30,6 +30,10 @@ import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class LogbackMessageWriterTest {
@@ -40,13 +44,44 @@ public class LogbackMessageWriterTest {
         LogbackWriter<ILoggingEvent> messageBuilder = createMessageBuilder(catcher);
         Map<String, EventCounter<Level>> events = new HashMap<String, EventCounter<Level>>();
         events.put("test-logger", createCounter(100, Level.ERROR));
-        messageBuilder.writeStatMessages(catcher, events, 60000);
+        messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
         String result = catcher.sb.toString();
         System.out.println("result = " + result);
         assertTrue(result.substring(0, result.length()).contains(
                 "t:ttt1=vvv1 t:ttt2=vvv2 m:log_event_counter=100 t:level=ERROR t:logger=test-logger"));
     }
 
+    @Test
+    public void testStatMessagesTimestamp() throws Exception {
+        StringsCatcher catcher = new StringsCatcher();
+        ManualClock clock = new ManualClock(1234567800000L);
+        LogbackWriter<ILoggingEvent> messageBuilder = new LogbackWriter<ILoggingEvent>();
+        messageBuilder.setEntity("test-entity");
+        messageBuilder.setSeriesSenderConfig(new SeriesSenderConfig());
+        messageBuilder.setClock(clock);
+        messageBuilder.start(catcher, Level.TRACE_INT, 60, new HashMap<String, String>());
+        assertSeriesTime(catcher.sb.toString(), 1234567800000L, 5);
+
+        catcher.clear();
+        // the writer runs after the end of the interval, series keep the interval time
+        clock.advance(61000);
+        Map<String, EventCounter<Level>> events = new HashMap<String, EventCounter<Level>>();
+        events.put("test-logger", createCounter(100, Level.ERROR, Level.WARN));
+        messageBuilder.writeStatMessages(catcher, events, 60000, 1234567860000L);
+        assertSeriesTime(catcher.sb.toString(), 1234567860000L, 12);
+    }
+
+    private static void assertSeriesTime(String result, long time, int expectedCount) {
+        int count = 0;
+        for (String line : result.split("\n")) {
+            if (line.startsWith("series ")) {
+                assertTrue(line, line.endsWith(" ms:" + time));
+                count++;
+            }
+        }
+        assertEquals(result, expectedCount, count);
+    }
+
     @Test
     public void testBuildMultipleStatMessage() throws Exception {
 
@@ -61,7 +96,7 @@ public class LogbackMessageWriterTest {
             messageBuilder.setSeriesSenderConfig(new SeriesSenderConfig(1, 30, -1));
             events.put("test-logger", createCounter(100, Level.ERROR, Level.WARN, Level.DEBUG));
 
-            messageBuilder.writeStatMessages(catcher, events, 60000);
+            messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result0 = " + result);
             assertTrue(
@@ -72,7 +107,7 @@ public class LogbackMessageWriterTest {
             assertTrue(result.contains("WARN"));
             assertTrue(result.contains("DEBUG"));
             assertTrue(result.contains("m:log_event_counter=100 "));
-//            assertTrue(result.contains("m:log_event_total_rate=100.0 "));
+            assertTrue(result.contains("m:log_event_total_rate=100.0 "));
             assertTrue(result.contains("m:log_event_total_counter=100 "));
         }
 
@@ -80,7 +115,7 @@ public class LogbackMessageWriterTest {
             catcher.clear();
             events.clear();
             events.put("test-logger", createCounter(1, Level.ERROR));
-            messageBuilder.writeStatMessages(catcher, events, 60000);
+            messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result1 = " + result);
             assertTrue(result.contains("ERROR"));
@@ -88,36 +123,36 @@ public class LogbackMessageWriterTest {
             assertTrue(result.contains("DEBUG"));
             assertTrue(result.contains("m:log_event_counter=100"));
             assertTrue(result.contains("m:log_event_counter=101"));
-//            assertTrue(result.contains("m:log_event_total_rate=0.0"));
-//            assertTrue(result.contains("m:log_event_total_rate=1.0"));
+            assertTrue(result.contains("m:log_event_total_rate=0.0"));
+            assertTrue(result.contains("m:log_event_total_rate=1.0"));
             assertTrue(result.contains("m:log_event_total_counter=100"));
             assertTrue(result.contains("m:log_event_total_counter=101"));
         }
         {
             catcher.clear();
             events.clear();
-            messageBuilder.writeStatMessages(catcher, events, 60000);
+            messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result2 = " + result);
             assertTrue(result.contains("ERROR"));
             assertTrue(result.contains("WARN"));
             assertTrue(result.contains("DEBUG"));
             assertTrue(result.contains("m:log_event_counter=101"));
-//            assertTrue(result.contains("m:log_event_total_rate=0"));
+            assertTrue(result.contains("m:log_event_total_rate=0"));
             assertTrue(result.contains("m:log_event_total_counter=100"));
             assertTrue(result.contains("m:log_event_total_counter=101"));
         }
         {
             catcher.clear();
             events.clear();
-            messageBuilder.writeStatMessages(catcher, events, 60000);
+            messageBuilder.writeStatMessages(catcher, events, 60000, System.currentTimeMillis());
             String result = catcher.sb.toString();
             System.out.println("result3 = " + result);
             assertTrue(result.contains("ERROR"));
             assertTrue(result.contains("WARN"));
             assertTrue(result.contains("DEBUG"));
-//            assertFalse(result.contains("m:log_event_rate=0"));
-//            assertTrue(result.contains("m:log_event_total_rate=0"));
+            assertFalse(result.contains("m:log_event_rate=0"));
+            assertTrue(result.contains("m:log_event_total_rate=0"));
             assertTrue(result.contains("m:log_event_total_counter=100"));
             assertTrue(result.contains("m:log_event_total_counter=101"));
         }
@@ -128,11 +163,12 @@ public class LogbackMessageWriterTest {
         StringsCatcher catcher = new StringsCatcher();
         LogbackWriter<ILoggingEvent> messageBuilder = createMessageBuilder(catcher);
         LoggingEvent event = LogbackUtils.createLoggingEvent(Level.ERROR, "test-logger", "test-message", "test-thread");
-        messageBuilder.writeSingles(catcher, createSingles(event, 0));
+        messageBuilder.writeSingle(catcher, createSingle(event, 0));
         String result = catcher.sb.toString();
         System.out.println("result = " + result);
         assertTrue(result.substring(0, result.length()).contains(
                 "t:ttt1=vvv1 t:ttt2=vvv2 t:type=logger m:test-message t:severity=ERROR t:level=ERROR t:source=test-logger"));
+        assertTrue(result.endsWith(" ms:" + event.getTimeStamp() + "\n"));
     }
 
     @Test
@@ -141,7 +177,7 @@ public class LogbackMessageWriterTest {
         LogbackWriter<ILoggingEvent> messageBuilder = createMessageBuilder(catcher);
         LoggingEvent event = LogbackUtils.createLoggingEvent(Level.ERROR, "test-logger", "test-message", "test-thread",
                 new NullPointerException("test"));
-        messageBuilder.writeSingles(catcher, createSingles(event, 10));
+        messageBuilder.writeSingle(catcher, createSingle(event, 10));
         String result = catcher.sb.toString();
         System.out.println("result = " + result);
         final String text = "t:ttt1=vvv1 t:ttt2=vvv2 t:type=logger m:\"test-message\n" +
@@ -150,10 +186,49 @@ public class LogbackMessageWriterTest {
         assertTrue(result, result.contains(text));
     }
 
-    private CountedQueue<EventWrapper<ILoggingEvent>> createSingles(LoggingEvent event, int lines) {
-        CountedQueue<EventWrapper<ILoggingEvent>> singles = new CountedQueue<EventWrapper<ILoggingEvent>>();
-        singles.add(new EventWrapper<ILoggingEvent>(event, lines, event.getMessage(),null));
-        return singles;
+    @Test
+    public void testDeferredFormatting() throws Exception {
+        StringsCatcher catcher = new StringsCatcher();
+        LogbackWriter<ILoggingEvent> messageBuilder = createMessageBuilder(catcher);
+        SeriesSenderConfig seriesSenderConfig = new SeriesSenderConfig();
+        seriesSenderConfig.setDeferMessageFormatting(true);
+        messageBuilder.setSeriesSenderConfig(seriesSenderConfig);
+        LoggingEvent event = LogbackUtils.createLoggingEvent(Level.WARN, "test-logger", "value-{}", "test-thread");
+        StringBuilder argument = new StringBuilder("42");
+        event.setArgumentArray(new Object[]{argument});
+        EventWrapper<ILoggingEvent> wrapper = messageBuilder.createWrapper(event, 0);
+        assertNull(wrapper.getMessage());
+        // the argument is changed after the logging call
+        argument.setLength(0);
+        argument.append("43");
+        messageBuilder.writeSingle(catcher, wrapper);
+        String result = catcher.sb.toString();
+        assertTrue(result, result.contains("m:value-42 t:severity=WARN t:level=WARN t:source=test-logger"));
+    }
+
+    @Test
+    public void testMdcTags() throws Exception {
+        StringsCatcher catcher = new StringsCatcher();
+        LogbackWriter<ILoggingEvent> messageBuilder = createMessageBuilder(catcher);
+        LoggingEvent event = LogbackUtils.createLoggingEvent(Level.WARN, "test-logger", "test-message", "test-thread");
+        assertNull(messageBuilder.createWrapper(event, 0).getMdcValues());
+
+        messageBuilder.addMdcTag("request");
+        messageBuilder.addMdcTag("user");
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("request", "r1");
+        mdc.put("other", "skipped");
+        event.setMDCPropertyMap(mdc);
+        EventWrapper<ILoggingEvent> wrapper = messageBuilder.createWrapper(event, 0);
+        assertArrayEquals(new String[]{"r1", null}, wrapper.getMdcValues());
+        messageBuilder.writeSingle(catcher, wrapper);
+        String result = catcher.sb.toString();
+        assertTrue(result, result.contains("t:request=r1"));
+        assertFalse(result, result.contains("skipped"));
+    }
+
+    private EventWrapper<ILoggingEvent> createSingle(LoggingEvent event, int lines) {
+        return new EventWrapper<ILoggingEvent>(event, lines, event.getMessage(),null);
     }
 
     private LogbackWriter<ILoggingEvent> createMessageBuilder(WritableByteChannel writer) {
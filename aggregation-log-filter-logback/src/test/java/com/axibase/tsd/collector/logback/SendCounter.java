@@ -36,10 +36,10 @@ public class SendCounter implements WritableByteChannel {
     @Override
     public int write(ByteBuffer src) throws IOException {
         byte[] array = new byte[src.remaining()];
-        src.duplicate().get(array);
+        src.get(array);
         System.out.printf("count:%s%n", new String(array, StandardCharsets.UTF_8));
         count.incrementAndGet();
-        return 1;
+        return array.length;
     }
 
     @Override